@@ -0,0 +1,162 @@
+package org.yapframework;
+
+import org.jooq.Condition;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs PersistenceContext operations on an executor and returns their results as futures, so that independent
+ * loads can overlap.  At most maxConcurrency operations use the database at once, which should be no more than
+ * the size of the connection pool; further operations wait for a permit on their executor thread.
+ * Use PersistenceContext.async() to create one.
+ */
+public class AsyncPersistenceContext {
+    private final PersistenceContext context;
+    private final Executor executor;
+    private final Semaphore permits;
+
+    AsyncPersistenceContext(PersistenceContext context, Executor executor, int maxConcurrency) {
+        this.context = context;
+        this.executor = executor;
+        this.permits = new Semaphore(maxConcurrency, true);
+    }
+
+    /**
+     * Creates the default executor: a virtual thread per task when the JVM supports virtual threads,
+     * otherwise a fixed pool of daemon threads.
+     * @param threads The size of the fixed pool
+     * @return
+     */
+    static Executor defaultExecutor(int threads) {
+        try {
+            // Java 21+, looked up reflectively so yap still runs on older JVMs
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch(Exception e) {
+            return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "yap-async-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Finds a single model instance by id.
+     * @param type The model type
+     * @param id The id
+     * @return
+     */
+    public CompletableFuture<Model> find(final String type, final Object id) {
+        return submit(new Work<Model>() {
+            public Model run(PersistenceContext context) {
+                return context.find(type, id);
+            }
+        });
+    }
+
+    /**
+     * Finds all models matching the specified conditions.
+     * @param type The model type
+     * @param conditions
+     * @return
+     */
+    public CompletableFuture<List<Model>> findAllBy(final String type, final Condition... conditions) {
+        return submit(new Work<List<Model>>() {
+            public List<Model> run(PersistenceContext context) {
+                return context.findAllBy(type, null, true, conditions);
+            }
+        });
+    }
+
+    /**
+     * Finds all models matching the specified conditions and preloads the included relationships.
+     * @param type The model type
+     * @param includes The relationships to load
+     * @param conditions
+     * @return
+     */
+    public CompletableFuture<List<Model>> findAllBy(final String type, final Includes includes, final Condition... conditions) {
+        return submit(new Work<List<Model>>() {
+            public List<Model> run(PersistenceContext context) {
+                return context.findAllBy(type, includes, conditions);
+            }
+        });
+    }
+
+    /**
+     * Fetches a field's value (either a model property or relationship).  The value is not stored on the model.
+     * @param model The owner model
+     * @param fieldName The field to fetch
+     * @param retClass The class of value to return
+     * @param <T> The class of value to return
+     * @return
+     */
+    public <T> CompletableFuture<T> fetch(final Model model, final String fieldName, final Class<T> retClass) {
+        return submit(new Work<T>() {
+            public T run(PersistenceContext context) {
+                return context.fetch(model, fieldName, retClass);
+            }
+        });
+    }
+
+    /**
+     * Convenience method to fetch a collection relationship.  The collection is not stored on the model.
+     * @param model The owner model
+     * @param fieldName The name of the relationship
+     * @return
+     */
+    public CompletableFuture<List<Model>> fetchList(final Model model, final String fieldName) {
+        return submit(new Work<List<Model>>() {
+            // collection relationships are always fetched as lists of models
+            @SuppressWarnings("unchecked")
+            public List<Model> run(PersistenceContext context) {
+                return (List<Model>) context.fetch(model, fieldName, List.class);
+            }
+        });
+    }
+
+    /**
+     * Saves a model.  Don't modify the model until the future completes.
+     * @param model
+     * @return A future that completes with the saved model
+     */
+    public CompletableFuture<Model> save(final Model model) {
+        return submit(new Work<Model>() {
+            public Model run(PersistenceContext context) {
+                context.save(model);
+                return model;
+            }
+        });
+    }
+
+    /**
+     * Runs any work against the context, for example a transaction.
+     * @param work
+     * @param <T> The type of result
+     * @return
+     */
+    public <T> CompletableFuture<T> submit(final Work<T> work) {
+        return CompletableFuture.supplyAsync(new Supplier<T>() {
+            public T get() {
+                permits.acquireUninterruptibly();
+
+                try {
+                    return work.run(context);
+                } finally {
+                    permits.release();
+                }
+            }
+        }, executor);
+    }
+}
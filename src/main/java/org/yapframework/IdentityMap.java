@@ -0,0 +1,155 @@
+package org.yapframework;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A first-level cache that keeps one model instance per type and id for the duration of a unit of work.
+ * Identity maps are not thread-safe; use one per request or job.
+ */
+public class IdentityMap {
+    private final Map<Key, Object> models;
+    private final ReferenceQueue<Model> queue;
+
+    private IdentityMap(Map<Key, Object> models, ReferenceQueue<Model> queue) {
+        this.models = models;
+        this.queue = queue;
+    }
+
+    /**
+     * Creates an identity map that holds every model it sees until cleared.
+     * @return
+     */
+    public static IdentityMap unbounded() {
+        return new IdentityMap(new HashMap<Key, Object>(), null);
+    }
+
+    /**
+     * Creates an identity map that holds at most maxSize models, evicting the least recently used.
+     * @param maxSize
+     * @return
+     */
+    public static IdentityMap bounded(final int maxSize) {
+        return new IdentityMap(new LinkedHashMap<Key, Object>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+                return size() > maxSize;
+            }
+        }, null);
+    }
+
+    /**
+     * Creates an identity map that only holds models as long as they're referenced elsewhere, so long
+     * running jobs don't accumulate every model they've loaded.
+     * @return
+     */
+    public static IdentityMap weak() {
+        return new IdentityMap(new HashMap<Key, Object>(), new ReferenceQueue<Model>());
+    }
+
+    /**
+     * Gets the model with the specified type and id, or null if it isn't in the map.
+     * @param type The model type name
+     * @param id The primary key value
+     * @return
+     */
+    public Model get(String type, Object id) {
+        if(id == null) return null;
+
+        expunge();
+        Object value = models.get(new Key(type, id));
+
+        if(value instanceof ModelReference) {
+            return ((ModelReference) value).get();
+        } else {
+            return (Model) value;
+        }
+    }
+
+    /**
+     * Adds a saved model to the map.  Models without an id are ignored.
+     * @param model
+     */
+    public void put(Model model) {
+        if(model.getId() == null) return;
+
+        expunge();
+        Key key = new Key(model.getType().getName(), model.getId());
+        models.put(key, queue == null ? model : new ModelReference(key, model, queue));
+    }
+
+    /**
+     * Removes a model from the map.
+     * @param type The model type name
+     * @param id The primary key value
+     */
+    public void remove(String type, Object id) {
+        if(id == null) return;
+
+        models.remove(new Key(type, id));
+    }
+
+    /**
+     * Removes all models from the map.
+     */
+    public void clear() {
+        models.clear();
+        expunge();
+    }
+
+    /**
+     * Gets the number of models in the map.
+     * @return
+     */
+    public int size() {
+        expunge();
+        return models.size();
+    }
+
+    /**
+     * Removes entries for weakly referenced models that have been garbage collected.
+     */
+    private void expunge() {
+        if(queue == null) return;
+
+        for(Reference<? extends Model> ref = queue.poll(); ref != null; ref = queue.poll()) {
+            Key key = ((ModelReference) ref).key;
+
+            if(models.get(key) == ref) {
+                models.remove(key);
+            }
+        }
+    }
+
+    private static class ModelReference extends WeakReference<Model> {
+        private final Key key;
+
+        ModelReference(Key key, Model model, ReferenceQueue<Model> queue) {
+            super(model, queue);
+            this.key = key;
+        }
+    }
+
+    private static class Key {
+        private final String type;
+        private final Object id;
+
+        Key(String type, Object id) {
+            this.type = type;
+            this.id = id;
+        }
+
+        public int hashCode() {
+            return 31 * type.hashCode() + id.hashCode();
+        }
+
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key)) return false;
+            Key key = (Key) obj;
+            return type.equals(key.type) && id.equals(key.id);
+        }
+    }
+}
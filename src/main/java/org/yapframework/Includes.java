@@ -0,0 +1,34 @@
+package org.yapframework;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A set of relationships to preload for every model in a query result.  Each relationship is loaded with one
+ * query for the whole result instead of one query per model.
+ */
+public class Includes {
+    private final List<String> relationships;
+
+    private Includes(List<String> relationships) {
+        this.relationships = relationships;
+    }
+
+    /**
+     * Creates a set of relationships to preload.
+     * @param relationships The relationship names
+     * @return
+     */
+    public static Includes includes(String... relationships) {
+        return new Includes(Collections.unmodifiableList(Arrays.asList(relationships)));
+    }
+
+    /**
+     * Gets the names of the relationships to preload.
+     * @return
+     */
+    public List<String> getRelationships() {
+        return relationships;
+    }
+}
@@ -1,10 +1,11 @@
 package org.yapframework;
 
+import org.yapframework.metadata.HasAndBelongsToMany;
+import org.yapframework.metadata.HasMany;
 import org.yapframework.metadata.ModelType;
+import org.yapframework.metadata.Relationship;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 /**
  * Represents a record in the database
@@ -14,11 +15,14 @@ public class Model {
     private ModelType type;
     private PersistenceContext context;
     private int order;
+    private Set<String> dirtyFields;
+    private Map<String, List<?>> loadedCollections;
+    private Map<String, Object> trackedValues;
 
     public Model(ModelType type, PersistenceContext context) {
         this.type = type;
         this.context = context;
-        values = new HashMap<String,Object>();
+        values = new ModelValues(type.getLayout());
     }
 
     Model(Map<String,Object> values, ModelType type, PersistenceContext context) {
@@ -111,7 +115,7 @@ public class Model {
             return (T) values.get(fieldName);
         } else  {
             T value = context.fetch(this, fieldName, retClass);
-            values.put(fieldName, value);
+            setLoaded(fieldName, value);
             return value;
         }
     }
@@ -158,17 +162,146 @@ public class Model {
             proxy.set(this, value);
         } else {
             values.put(fieldName, value);
+            markDirty(fieldName);
         }
 
         return this;
     }
 
     /**
-     * Gets all field values as a map.
+     * Marks a field as changed so that it's written on save.  Proxied properties aren't columns, so they're
+     * never marked.
+     * @param fieldName
+     */
+    private void markDirty(String fieldName) {
+        if(type.proxyForProperty(fieldName) != null) return;
+
+        if(dirtyFields == null) {
+            dirtyFields = new HashSet<String>();
+        }
+
+        dirtyFields.add(fieldName);
+    }
+
+    /**
+     * Returns true if any field has been set, any loaded collection has been modified, or any item in a loaded
+     * hasMany collection is dirty since this model was loaded or last saved.
+     * @return
+     */
+    public boolean isDirty() {
+        if(dirtyFields != null && !dirtyFields.isEmpty()) return true;
+
+        for(Relationship<?> rel:type.getRelationships().values()) {
+            if(isCollectionChanged(rel.getName())) return true;
+
+            if(rel instanceof HasMany) {
+                List<?> items = (List<?>) values.get(rel.getName());
+
+                if(items != null) {
+                    for(Object item:items) {
+                        if(((Model) item).getId() == null || ((Model) item).isDirty()) return true;
+                    }
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Gets the names of the fields that have been set since this model was loaded or last saved.
+     * @return
+     */
+    public Set<String> getDirtyFields() {
+        return dirtyFields == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(dirtyFields);
+    }
+
+    /**
+     * Returns true if this model's own row needs to be updated: a column or belongsTo relationship has been set,
+     * or a HasAndBelongsToMany collection has changed.  Changes to hasMany items are written to their own rows.
+     * @return
+     */
+    boolean isRowChanged() {
+        if(dirtyFields != null) {
+            for(String fieldName:dirtyFields) {
+                if(!(type.relationshipFor(fieldName) instanceof HasMany)) return true;
+            }
+        }
+
+        for(Relationship<?> rel:type.getRelationships().values()) {
+            if(rel instanceof HasAndBelongsToMany && isCollectionChanged(rel.getName())) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns true if the specified collection has been set, or loaded and then modified, since this model
+     * was loaded or last saved.
+     * @param fieldName The name of the collection relationship
+     * @return
+     */
+    boolean isCollectionChanged(String fieldName) {
+        Object current = values.get(fieldName);
+
+        if(!(current instanceof List)) return false;
+        if(dirtyFields != null && dirtyFields.contains(fieldName)) return true;
+
+        List<?> loaded = loadedCollections == null ? null : loadedCollections.get(fieldName);
+        return loaded == null || !loaded.equals(current);
+    }
+
+    /**
+     * Stores a value that was loaded from the database without marking it dirty.  Collections are
+     * snapshotted so that changes made to them can be detected on save.
+     * @param fieldName
+     * @param value
+     */
+    void setLoaded(String fieldName, Object value) {
+        values.put(fieldName, value);
+
+        if(value instanceof List) {
+            if(loadedCollections == null) {
+                loadedCollections = new HashMap<String, List<?>>();
+            }
+
+            loadedCollections.put(fieldName, new ArrayList<Object>((List<?>) value));
+        }
+    }
+
+    /**
+     * Gets a collection as it was when it was loaded or last saved.
+     * @param fieldName
+     * @return The snapshot, or null if the collection was never loaded
+     */
+    List<?> getLoadedCollection(String fieldName) {
+        return loadedCollections == null ? null : loadedCollections.get(fieldName);
+    }
+
+    /**
+     * Marks this model as clean after it has been saved.
+     */
+    void clearDirty() {
+        dirtyFields = null;
+
+        for(Map.Entry<String, Object> entry:values.entrySet()) {
+            if(entry.getValue() instanceof List) {
+                setLoaded(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Gets all field values as a map.  Changes made through the map mark the changed fields dirty, the same
+     * as set().
      * @return
      */
     public Map<String, Object> getValues() {
-        return values;
+        if(trackedValues == null) {
+            trackedValues = new TrackedValues();
+        }
+
+        return trackedValues;
     }
 
     /**
@@ -222,4 +355,112 @@ public class Model {
 
         return false;
     }
+
+    /**
+     * A view of the values that marks fields dirty when they're put, removed or replaced.
+     */
+    private class TrackedValues extends AbstractMap<String, Object> {
+        public Object get(Object key) {
+            return values.get(key);
+        }
+
+        public boolean containsKey(Object key) {
+            return values.containsKey(key);
+        }
+
+        public int size() {
+            return values.size();
+        }
+
+        public Object put(String key, Object value) {
+            Object previous = values.put(key, value);
+            markDirty(key);
+            return previous;
+        }
+
+        public Object remove(Object key) {
+            if(!values.containsKey(key)) return null;
+
+            Object previous = values.remove(key);
+            markDirty((String) key);
+            return previous;
+        }
+
+        public void clear() {
+            for(String key:new ArrayList<String>(values.keySet())) {
+                markDirty(key);
+            }
+
+            values.clear();
+        }
+
+        public Set<Entry<String, Object>> entrySet() {
+            return new AbstractSet<Entry<String, Object>>() {
+                public Iterator<Entry<String, Object>> iterator() {
+                    final Iterator<Entry<String, Object>> iterator = values.entrySet().iterator();
+
+                    return new Iterator<Entry<String, Object>>() {
+                        private Entry<String, Object> current;
+
+                        public boolean hasNext() {
+                            return iterator.hasNext();
+                        }
+
+                        public Entry<String, Object> next() {
+                            current = iterator.next();
+                            return new TrackedEntry(Model.this, current);
+                        }
+
+                        public void remove() {
+                            iterator.remove();
+                            markDirty(current.getKey());
+                        }
+                    };
+                }
+
+                public int size() {
+                    return values.size();
+                }
+            };
+        }
+    }
+
+    /**
+     * An entry of the values that marks its field dirty when its value is replaced.
+     */
+    private static class TrackedEntry implements Map.Entry<String, Object> {
+        private final Model model;
+        private final Map.Entry<String, Object> entry;
+
+        TrackedEntry(Model model, Map.Entry<String, Object> entry) {
+            this.model = model;
+            this.entry = entry;
+        }
+
+        public String getKey() {
+            return entry.getKey();
+        }
+
+        public Object getValue() {
+            return entry.getValue();
+        }
+
+        public Object setValue(Object value) {
+            Object previous = entry.setValue(value);
+            model.markDirty(entry.getKey());
+            return previous;
+        }
+
+        public int hashCode() {
+            return entry.hashCode();
+        }
+
+        public boolean equals(Object obj) {
+            return entry.equals(obj);
+        }
+
+        public String toString() {
+            return entry.toString();
+        }
+    }
 }
@@ -0,0 +1,146 @@
+package org.yapframework;
+
+import org.jooq.Cursor;
+import org.jooq.Record;
+import org.jooq.exception.DataAccessException;
+import org.yapframework.metadata.ModelType;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Iterates over the results of a query one model at a time using a database cursor, so that large results
+ * don't have to be held in memory.  Rows are read straight from the JDBC result set.  The cursor holds a
+ * connection (and transaction) open until it is exhausted or closed, so always close it when you're done.
+ */
+public class ModelCursor implements Iterator<Model>, Closeable {
+    private final Cursor<Record> cursor;
+    private final Connection connection;
+    private final boolean endTransaction;
+    private final ModelType type;
+    private final PersistenceContext context;
+    private final ResultSet rs;
+    private final RowReader reader;
+    private boolean advanced;
+    private boolean hasRow;
+    private volatile boolean closed;
+
+    ModelCursor(Cursor<Record> cursor, Connection connection, boolean endTransaction, ModelType type, PersistenceContext context) {
+        this.cursor = cursor;
+        this.connection = connection;
+        this.endTransaction = endTransaction;
+        this.type = type;
+        this.context = context;
+        this.rs = cursor.resultSet();
+
+        try {
+            this.reader = new RowReader(type, rs.getMetaData());
+        } catch(SQLException e) {
+            close();
+            throw new DataAccessException("Could not read the result columns", e);
+        } catch(RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns true if there are more models to read.  The cursor is closed automatically once all
+     * models have been read.
+     * @return
+     */
+    public boolean hasNext() {
+        if(closed) return false;
+
+        if(!advanced) {
+            try {
+                hasRow = rs.next();
+                advanced = true;
+            } catch(SQLException e) {
+                close();
+                throw new DataAccessException("Could not read the next row", e);
+            }
+        }
+
+        if(!hasRow) {
+            close();
+        }
+
+        return hasRow;
+    }
+
+    /**
+     * Reads the next model.
+     * @return
+     */
+    public Model next() {
+        if(!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        advanced = false;
+
+        try {
+            return context.hydrate(reader.read(rs), type);
+        } catch(SQLException e) {
+            close();
+            throw new DataAccessException("Could not read a row", e);
+        }
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Models can't be removed from a cursor");
+    }
+
+    /**
+     * Returns the remaining models as a sequential stream.  Closing the stream closes the cursor.
+     * @return
+     */
+    public Stream<Model> stream() {
+        Spliterator<Model> spliterator = Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL);
+
+        return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Cancels the statement reading the results, so that a read in progress on another thread fails instead of
+     * waiting for the database.  The cursor still needs to be closed.  Failures to cancel are ignored, since the
+     * statement may already have finished.
+     */
+    void cancel() {
+        if(closed) return;
+
+        try {
+            rs.getStatement().cancel();
+        } catch(Exception e) {
+            // the statement is already closed or can't be cancelled
+        }
+    }
+
+    /**
+     * Closes the underlying result set and ends the transaction, returning the connection to the pool.
+     * Calling this more than once has no effect.
+     */
+    public void close() {
+        if(closed) return;
+        closed = true;
+
+        try {
+            cursor.close();
+        } finally {
+            PersistenceContext.release(connection, endTransaction);
+        }
+    }
+}
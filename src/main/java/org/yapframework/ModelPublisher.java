@@ -0,0 +1,162 @@
+package org.yapframework;
+
+import org.jooq.Condition;
+import org.jooq.Record;
+import org.jooq.ResultQuery;
+import org.yapframework.flow.Publisher;
+import org.yapframework.flow.Subscriber;
+import org.yapframework.flow.Subscription;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the results of a query one model at a time with backpressure.  Each subscription opens its own
+ * database cursor when the first models are requested and only reads as many rows as the subscriber has
+ * requested, so large results are never held in memory.  Rows are read on the thread that calls request().
+ * Cancelling a subscription cancels the running statement and closes the cursor.
+ */
+public class ModelPublisher implements Publisher<Model> {
+    private final PersistenceContext context;
+    private final String type;
+    private final ResultQuery<Record> query;
+    private final Condition[] conditions;
+
+    ModelPublisher(PersistenceContext context, String type, ResultQuery<Record> query, Condition[] conditions) {
+        this.context = context;
+        this.type = type;
+        this.query = query;
+        this.conditions = conditions;
+    }
+
+    public void subscribe(Subscriber<? super Model> subscriber) {
+        if(subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+
+        subscriber.onSubscribe(new CursorSubscription(subscriber));
+    }
+
+    /**
+     * Opens a cursor for a new subscription.
+     * @return
+     */
+    private ModelCursor open() {
+        if(query == null) {
+            return context.cursor(type, conditions);
+        }
+
+        // the query is attached to the cursor's connection, so subscriptions must take turns
+        synchronized(query) {
+            return context.cursor(type, query);
+        }
+    }
+
+    private class CursorSubscription implements Subscription {
+        private final Subscriber<? super Model> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger work = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile ModelCursor cursor;
+        private boolean done;
+
+        CursorSubscription(Subscriber<? super Model> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        public void request(long n) {
+            if(n <= 0) {
+                cancelled = true;
+                subscriber.onError(new IllegalArgumentException("Must request a positive number of models, not " + n));
+            } else {
+                long current, updated;
+
+                do {
+                    current = demand.get();
+                    updated = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while(!demand.compareAndSet(current, updated));
+            }
+
+            drain();
+        }
+
+        public void cancel() {
+            cancelled = true;
+            ModelCursor cursor = this.cursor;
+
+            // stop a read in progress on another thread, it will then close the cursor
+            if(cursor != null) {
+                cursor.cancel();
+            }
+
+            drain();
+        }
+
+        /**
+         * Sends models while there is demand.  Only one thread sends at a time; calls made while another
+         * thread is sending, including calls to request() from onNext(), are picked up by that thread.
+         */
+        private void drain() {
+            if(work.getAndIncrement() != 0) return;
+
+            int missed = 1;
+
+            do {
+                send();
+                missed = work.addAndGet(-missed);
+            } while(missed != 0);
+        }
+
+        private void send() {
+            if(done) return;
+
+            try {
+                long requested = demand.get();
+
+                while(requested > 0) {
+                    long sent = 0;
+
+                    while(sent < requested) {
+                        if(cancelled) {
+                            finish();
+                            return;
+                        }
+
+                        if(cursor == null) {
+                            cursor = open();
+                        }
+
+                        if(!cursor.hasNext()) {
+                            finish();
+                            subscriber.onComplete();
+                            return;
+                        }
+
+                        subscriber.onNext(cursor.next());
+                        sent++;
+                    }
+
+                    requested = requested == Long.MAX_VALUE ? Long.MAX_VALUE : demand.addAndGet(-sent);
+                }
+
+                if(cancelled) {
+                    finish();
+                }
+            } catch(RuntimeException e) {
+                finish();
+
+                if(!cancelled) {
+                    subscriber.onError(e);
+                }
+            }
+        }
+
+        private void finish() {
+            done = true;
+
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package org.yapframework;
+
+import org.yapframework.metadata.ColumnLayout;
+
+import java.util.*;
+
+/**
+ * The values of a model, stored as an array whose slots are described by a column layout shared with every
+ * other model of the same type.  Fields that aren't in the layout, such as relationships and proxied
+ * properties, are kept in a separate overflow map.
+ */
+class ModelValues extends AbstractMap<String, Object> {
+    /**
+     * Marks a slot whose column has no value, as opposed to a null value.
+     */
+    private static final Object ABSENT = new Object();
+
+    private final ColumnLayout layout;
+    private final Object[] row;
+    private Map<String, Object> overflow;
+
+    /**
+     * Creates an empty set of values.
+     * @param layout
+     */
+    ModelValues(ColumnLayout layout) {
+        this.layout = layout;
+        this.row = new Object[layout.size()];
+        Arrays.fill(row, ABSENT);
+    }
+
+    /**
+     * Sets the value of a slot directly, bypassing the column name lookup.
+     * @param slot
+     * @param value
+     */
+    void setSlot(int slot, Object value) {
+        row[slot] = value;
+    }
+
+    /**
+     * Copies a map of values.
+     * @param values
+     * @param layout The layout to use if values aren't already compact
+     * @return
+     */
+    static ModelValues copyOf(Map<String, Object> values, ColumnLayout layout) {
+        ModelValues copy;
+
+        if(values instanceof ModelValues) {
+            ModelValues source = (ModelValues) values;
+            copy = new ModelValues(source.layout);
+            System.arraycopy(source.row, 0, copy.row, 0, source.row.length);
+
+            if(source.overflow != null) {
+                copy.overflow = new HashMap<String, Object>(source.overflow);
+            }
+        } else {
+            copy = new ModelValues(layout);
+            copy.putAll(values);
+        }
+
+        return copy;
+    }
+
+    public Object get(Object key) {
+        int slot = layout.slotOf(key);
+
+        if(slot == -1) {
+            return overflow == null ? null : overflow.get(key);
+        } else {
+            Object value = row[slot];
+            return value == ABSENT ? null : value;
+        }
+    }
+
+    public boolean containsKey(Object key) {
+        int slot = layout.slotOf(key);
+
+        if(slot == -1) {
+            return overflow != null && overflow.containsKey(key);
+        } else {
+            return row[slot] != ABSENT;
+        }
+    }
+
+    public Object put(String key, Object value) {
+        int slot = layout.slotOf(key);
+
+        if(slot == -1) {
+            if(overflow == null) {
+                overflow = new HashMap<String, Object>();
+            }
+
+            return overflow.put(key, value);
+        } else {
+            Object previous = row[slot];
+            row[slot] = value;
+            return previous == ABSENT ? null : previous;
+        }
+    }
+
+    public Object remove(Object key) {
+        int slot = layout.slotOf(key);
+
+        if(slot == -1) {
+            return overflow == null ? null : overflow.remove(key);
+        } else {
+            Object previous = row[slot];
+            row[slot] = ABSENT;
+            return previous == ABSENT ? null : previous;
+        }
+    }
+
+    public int size() {
+        int size = overflow == null ? 0 : overflow.size();
+
+        for(Object value:row) {
+            if(value != ABSENT) size++;
+        }
+
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(row, ABSENT);
+        overflow = null;
+    }
+
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            public Iterator<Entry<String, Object>> iterator() {
+                return new EntryIterator();
+            }
+
+            public int size() {
+                return ModelValues.this.size();
+            }
+        };
+    }
+
+    /**
+     * Iterates over the present slots, then the overflow map.
+     */
+    private class EntryIterator implements Iterator<Entry<String, Object>> {
+        private static final int NONE = -1, OVERFLOW = -2;
+
+        private int next = advance(0);
+        private int current = NONE;
+        private Iterator<Entry<String, Object>> overflowIterator;
+
+        private int advance(int slot) {
+            while(slot < row.length && row[slot] == ABSENT) slot++;
+            return slot;
+        }
+
+        public boolean hasNext() {
+            if(next < row.length) return true;
+
+            if(overflowIterator == null) {
+                overflowIterator = overflow == null
+                        ? Collections.<Entry<String, Object>>emptyIterator()
+                        : overflow.entrySet().iterator();
+            }
+
+            return overflowIterator.hasNext();
+        }
+
+        public Entry<String, Object> next() {
+            if(!hasNext()) throw new NoSuchElementException();
+
+            if(next < row.length) {
+                current = next;
+                next = advance(next + 1);
+                return new SlotEntry(current);
+            } else {
+                current = OVERFLOW;
+                return overflowIterator.next();
+            }
+        }
+
+        public void remove() {
+            if(current == OVERFLOW) {
+                overflowIterator.remove();
+            } else if(current == NONE) {
+                throw new IllegalStateException();
+            } else {
+                row[current] = ABSENT;
+            }
+
+            current = NONE;
+        }
+    }
+
+    private class SlotEntry implements Entry<String, Object> {
+        private final int slot;
+
+        SlotEntry(int slot) {
+            this.slot = slot;
+        }
+
+        public String getKey() {
+            return layout.columnAt(slot);
+        }
+
+        public Object getValue() {
+            Object value = row[slot];
+            return value == ABSENT ? null : value;
+        }
+
+        public Object setValue(Object value) {
+            Object previous = getValue();
+            row[slot] = value;
+            return previous;
+        }
+
+        public int hashCode() {
+            Object value = getValue();
+            return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Entry)) return false;
+            Entry<?, ?> entry = (Entry<?, ?>) obj;
+            Object value = getValue();
+            return getKey().equals(entry.getKey()) && (value == null ? entry.getValue() == null : value.equals(entry.getValue()));
+        }
+    }
+}
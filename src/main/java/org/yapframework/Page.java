@@ -0,0 +1,139 @@
+package org.yapframework;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * One page of models returned by a keyset (seek) query.
+ */
+public class Page {
+    private final List<Model> models;
+    private final String continuationToken;
+
+    Page(List<Model> models, String continuationToken) {
+        this.models = models;
+        this.continuationToken = continuationToken;
+    }
+
+    /**
+     * Gets the models on this page.
+     * @return
+     */
+    public List<Model> getModels() {
+        return models;
+    }
+
+    /**
+     * Gets the opaque token to pass to PersistenceContext.page() to get the next page, or null if this is
+     * the last page.
+     * @return
+     */
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    /**
+     * Returns true if there is another page after this one.
+     * @return
+     */
+    public boolean hasMore() {
+        return continuationToken != null;
+    }
+
+    /**
+     * Encodes the sort key of the last model on a page as a continuation token.  Only simple column values
+     * (strings, numbers, booleans and dates) are supported.
+     * @param key The sort column value (if any) followed by the primary key value
+     * @return
+     */
+    static String encodeToken(Object[] key) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(key.length);
+
+            for(Object value:key) {
+                if(value instanceof String) {
+                    out.writeByte('S');
+                    out.writeUTF((String) value);
+                } else if(value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                    out.writeByte('I');
+                    out.writeInt(((Number) value).intValue());
+                } else if(value instanceof Long) {
+                    out.writeByte('L');
+                    out.writeLong((Long) value);
+                } else if(value instanceof Double || value instanceof Float) {
+                    out.writeByte('D');
+                    out.writeDouble(((Number) value).doubleValue());
+                } else if(value instanceof BigDecimal || value instanceof BigInteger) {
+                    out.writeByte('N');
+                    out.writeUTF(value.toString());
+                } else if(value instanceof Boolean) {
+                    out.writeByte('B');
+                    out.writeBoolean((Boolean) value);
+                } else if(value instanceof Timestamp) {
+                    out.writeByte('T');
+                    out.writeLong(((Timestamp) value).getTime());
+                    out.writeInt(((Timestamp) value).getNanos());
+                } else if(value instanceof java.sql.Date) {
+                    out.writeByte('d');
+                    out.writeLong(((java.sql.Date) value).getTime());
+                } else if(value instanceof Time) {
+                    out.writeByte('t');
+                    out.writeLong(((Time) value).getTime());
+                } else {
+                    throw new IllegalArgumentException("Can't page on a column of type " + (value == null ? "null" : value.getClass().getName()));
+                }
+            }
+
+            out.close();
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decodes a continuation token created by encodeToken()
+     * @param token
+     * @return The sort key
+     */
+    static Object[] decodeToken(String token) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(token)));
+            Object[] key = new Object[in.readByte()];
+
+            for(int i = 0; i < key.length; i++) {
+                byte tag = in.readByte();
+
+                switch(tag) {
+                    case 'S': key[i] = in.readUTF(); break;
+                    case 'I': key[i] = in.readInt(); break;
+                    case 'L': key[i] = in.readLong(); break;
+                    case 'D': key[i] = in.readDouble(); break;
+                    case 'N': key[i] = new BigDecimal(in.readUTF()); break;
+                    case 'B': key[i] = in.readBoolean(); break;
+                    case 'T':
+                        Timestamp timestamp = new Timestamp(in.readLong());
+                        timestamp.setNanos(in.readInt());
+                        key[i] = timestamp;
+                        break;
+                    case 'd': key[i] = new java.sql.Date(in.readLong()); break;
+                    case 't': key[i] = new Time(in.readLong()); break;
+                    default: throw new IOException("Unknown value tag " + tag);
+                }
+            }
+
+            return key;
+        } catch(IOException e) {
+            throw new IllegalArgumentException("Invalid continuation token", e);
+        } catch(RuntimeException e) {
+            throw new IllegalArgumentException("Invalid continuation token", e);
+        }
+    }
+}
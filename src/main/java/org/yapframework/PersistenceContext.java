@@ -1,13 +1,23 @@
 package org.yapframework;
 
 import org.jooq.*;
+import org.jooq.exception.DataAccessException;
+import org.jooq.exception.InvalidResultException;
 import org.jooq.impl.DSL;
+import org.yapframework.cache.ModelCache;
 import org.yapframework.exceptions.InvalidModelTypeException;
 import org.yapframework.exceptions.OptimisticLockingException;
 import org.yapframework.metadata.*;
 
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 
 import static org.jooq.impl.DSL.*;
 
@@ -15,10 +25,66 @@ import static org.jooq.impl.DSL.*;
  * Persistence configuration
  */
 public class PersistenceContext {
+    private static final int MAX_STATEMENTS = 256;
+
+    /**
+     * The most bind values a multi-row insert may have.  PostgreSQL's protocol counts parameters with a
+     * 16 bit integer, and other databases have similar limits.
+     */
+    private static final int MAX_PARAMETERS = 32767;
+
+    /**
+     * A parameter in a compiled statement.  Typed parameters are rendered with a cast on some dialects, which
+     * would fix the type of the value bound later.
+     */
+    private static final Field<Object> PARAMETER = field("?");
+
     private SQLDialect dialect;
     private DataSource dataSource;
-    private Map<String, ModelType> configuration = new HashMap<String, ModelType>();
+    private ModelRegistry configuration = new ModelRegistry();
+    private String watchedSchema;
+    private SchemaChangeSource schemaChanges;
     private DSLContext jooq;
+    private int fetchSize = 1000;
+    private int batchSize = 500;
+    private int maxConcurrency = 10;
+    private AsyncPersistenceContext async;
+    private IdentityMap identityMap;
+    private Connection connection;
+    private Map<ModelType, Set<Object>> evictAfterCommit;
+
+    public PersistenceContext() {
+    }
+
+    /**
+     * Creates a session that shares the configuration and connections of the parent context.
+     * @param parent
+     * @param identityMap
+     */
+    private PersistenceContext(PersistenceContext parent, IdentityMap identityMap) {
+        this.dialect = parent.dialect;
+        this.dataSource = parent.dataSource;
+        this.configuration = parent.configuration;
+        this.watchedSchema = parent.watchedSchema;
+        this.schemaChanges = parent.schemaChanges;
+        this.jooq = parent.jooq;
+        this.fetchSize = parent.fetchSize;
+        this.batchSize = parent.batchSize;
+        this.identityMap = identityMap;
+    }
+
+    /**
+     * Creates a session that runs every statement on one connection.
+     * @param parent
+     * @param identityMap
+     * @param connection
+     */
+    private PersistenceContext(PersistenceContext parent, IdentityMap identityMap, Connection connection) {
+        this(parent, identityMap);
+        this.connection = connection;
+        this.jooq = DSL.using(connection, dialect);
+        this.evictAfterCommit = new HashMap<ModelType, Set<Object>>();
+    }
 
     /**
      * Configures (or reconfigures) a model type.
@@ -26,20 +92,172 @@ public class PersistenceContext {
      * @return
      */
     public PersistenceContext configure(ModelType type) {
-        configuration.put(type.getName(), type);
+        return reconfigure(Collections.singletonList(type), Collections.<String>emptyList());
+    }
+
+    /**
+     * Configures (or reconfigures) many model types at once.
+     * @param types
+     * @return
+     */
+    public PersistenceContext configure(Collection<ModelType> types) {
+        return reconfigure(types, Collections.<String>emptyList());
+    }
+
+    /**
+     * Configures a model type for every table in a database schema that has a single column primary key, named
+     * after the table.  See SchemaIntrospector.  Types already configured with the same names are replaced.
+     * Call init() first.
+     * @param schema
+     * @return
+     */
+    public PersistenceContext configureFromCatalog(String schema) {
+        return configure(new SchemaIntrospector(jooq).introspect(schema));
+    }
+
+    /**
+     * Resolves model types that aren't configured from the tables of the same name in a database schema when
+     * they're first used, instead of configuring every table up front.  At most maxResolved types are kept.
+     * See CatalogModelTypeResolver.  Call init() first.
+     * @param schema
+     * @param maxResolved
+     * @return
+     */
+    public PersistenceContext resolveFromCatalog(String schema, int maxResolved) {
+        configuration.maxResolved(maxResolved).resolver(new CatalogModelTypeResolver(jooq, schema));
+        return this;
+    }
+
+    /**
+     * Watches a database schema for changes by polling its catalog fingerprint.  See refreshSchema() and
+     * FingerprintChangeSource.  Call init() first.
+     * @param schema
+     * @return
+     */
+    public PersistenceContext watchSchema(String schema) {
+        return watchSchema(schema, new FingerprintChangeSource(jooq, schema));
+    }
+
+    /**
+     * Watches a database schema for changes reported by a source, such as one fed by DDL events.
+     * See refreshSchema().
+     * @param schema
+     * @param source
+     * @return
+     */
+    public PersistenceContext watchSchema(String schema, SchemaChangeSource source) {
+        source.poll();
+        this.watchedSchema = schema;
+        this.schemaChanges = source;
         return this;
     }
 
+    /**
+     * Refreshes the model types whose tables have changed since the last refresh.  Configured types of altered
+     * tables are replaced by copies with the tables' current columns (see ModelType.withColumns()), types of
+     * dropped tables are unconfigured, and resolved types of changed tables are resolved again.  The caches of
+     * the affected types are cleared; other types and their caches are left alone.  The replacement is a single
+     * configuration change, so readers are never paused.  Call this periodically or when DDL is run.
+     * @return The tables that changed
+     */
+    public synchronized Collection<String> refreshSchema() {
+        if(schemaChanges == null) {
+            throw new IllegalStateException("Call watchSchema() before refreshSchema()");
+        }
+
+        Collection<String> changed = schemaChanges.poll();
+        if(changed.isEmpty()) return changed;
+
+        Map<String, List<String>> columns = new SchemaIntrospector(jooq).columns(watchedSchema, changed);
+        List<ModelType> affected = new ArrayList<ModelType>();
+        List<ModelType> refreshed = new ArrayList<ModelType>();
+        List<String> dropped = new ArrayList<String>();
+
+        for(ModelType type:configuration.getAll().values()) {
+            if(!changed.contains(type.getTable())) continue;
+
+            List<String> tableColumns = columns.get(type.getTable());
+            affected.add(type);
+
+            if(tableColumns == null) {
+                dropped.add(type.getName());
+            } else {
+                refreshed.add(type.withColumns(tableColumns.toArray(new String[tableColumns.size()])));
+            }
+        }
+
+        configuration.update(refreshed, dropped);
+        configuration.invalidateTables(changed);
+
+        // cleared after the swap so that readers of the old types can't refill them with old values for long
+        for(ModelType type:affected) {
+            if(type.getCache() != null) {
+                type.getCache().clear();
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Writes the configured model types with the current fingerprint of a schema, so that they can be loaded
+     * by loadMetadata() on restart.  See MetadataSnapshot.
+     * @param schema The schema the types are built from
+     * @param out
+     * @throws IOException
+     */
+    public void saveMetadata(String schema, OutputStream out) throws IOException {
+        String fingerprint = new SchemaIntrospector(jooq).fingerprint(schema);
+        new MetadataSnapshot(fingerprint, configuration.getAll().values()).write(out);
+    }
+
+    /**
+     * Configures the model types written by saveMetadata(), unless the schema has changed since they were
+     * written.  Call init() first.
+     * @param schema The schema the types are built from
+     * @param in
+     * @return true if the types were configured, false if the schema has changed and they should be rebuilt
+     * @throws IOException
+     */
+    public boolean loadMetadata(String schema, InputStream in) throws IOException {
+        MetadataSnapshot snapshot = MetadataSnapshot.read(in);
+
+        if(!snapshot.getFingerprint().equals(new SchemaIntrospector(jooq).fingerprint(schema))) {
+            return false;
+        }
+
+        configure(snapshot.getTypes());
+        return true;
+    }
+
     /**
      * Removes a model type from the configuration.
      * @param name
      * @return
      */
     public PersistenceContext unconfigure(String name) {
-        configuration.remove(name);
+        return reconfigure(Collections.<ModelType>emptyList(), Collections.singletonList(name));
+    }
+
+    /**
+     * Adds, replaces and removes model types in a single change that other threads see all at once.
+     * @param configure The types to add or replace
+     * @param unconfigure The names of the types to remove
+     * @return
+     */
+    public PersistenceContext reconfigure(Collection<ModelType> configure, Collection<String> unconfigure) {
+        configuration.update(configure, unconfigure);
         return this;
     }
 
+    /**
+     * Gets the registry of configured model types.
+     * @return
+     */
+    public ModelRegistry getRegistry() {
+        return configuration;
+    }
+
     public PersistenceContext init() {
         jooq = DSL.using(dataSource, dialect);
         return this;
@@ -55,6 +273,155 @@ public class PersistenceContext {
         return this;
     }
 
+    /**
+     * Sets the number of rows a cursor reads from the database at a time.  Defaults to 1000.
+     * @param fetchSize
+     * @return
+     */
+    public PersistenceContext setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+        return this;
+    }
+
+    /**
+     * Opens a session with an unbounded identity map.  See openSession(IdentityMap).
+     * @return
+     */
+    public PersistenceContext openSession() {
+        return openSession(IdentityMap.unbounded());
+    }
+
+    /**
+     * Opens a session for a unit of work.  The session shares this context's configuration, but every model
+     * loaded or saved through it (including lazy-loaded relationships) is tracked in the identity map, so
+     * repeated lookups of the same type and id return the same instance without querying the database.
+     * Sessions are not thread-safe.
+     * @param identityMap
+     * @return
+     */
+    public PersistenceContext openSession(IdentityMap identityMap) {
+        return new PersistenceContext(this, identityMap);
+    }
+
+    /**
+     * Runs work in a transaction.  The work is given a session that runs every find, fetch, save and delete on a
+     * single connection, which is committed when the work returns or rolled back if it throws.  The session uses
+     * this context's identity map if it has one, otherwise its own.  Calling this on a transaction's session
+     * runs the work in the same transaction, as does calling it while the data source's connection is already
+     * in a transaction.
+     * @param work
+     * @param <T> The type of result
+     * @return The result of the work
+     */
+    public <T> T inTransaction(Work<T> work) {
+        if(this.connection != null) {
+            return work.run(this);
+        }
+
+        Connection connection = null;
+        boolean startedTransaction = false;
+
+        try {
+            connection = dataSource.getConnection();
+
+            if(connection.getAutoCommit()) {
+                connection.setAutoCommit(false);
+                startedTransaction = true;
+            }
+        } catch(SQLException e) {
+            release(connection, startedTransaction);
+            throw new DataAccessException("Could not begin transaction", e);
+        }
+
+        PersistenceContext session = new PersistenceContext(this, identityMap == null ? IdentityMap.unbounded() : identityMap, connection);
+        boolean committed = false;
+
+        try {
+            T result = work.run(session);
+
+            if(startedTransaction) {
+                connection.commit();
+            }
+
+            committed = true;
+            return result;
+        } catch(SQLException e) {
+            throw new DataAccessException("Could not commit transaction", e);
+        } finally {
+            release(connection, startedTransaction);
+
+            if(committed) {
+                // evict again in case another context cached a row between the write and the commit
+                for(Map.Entry<ModelType, Set<Object>> entry:session.evictAfterCommit.entrySet()) {
+                    for(Object id:entry.getValue()) {
+                        evict(entry.getKey(), id);
+                    }
+                }
+            } else if(identityMap != null) {
+                // tracked models may hold changes that were rolled back
+                identityMap.clear();
+            }
+        }
+    }
+
+    /**
+     * Gets the identity map of this session, or null if this context is not a session.
+     * @return
+     */
+    public IdentityMap getIdentityMap() {
+        return identityMap;
+    }
+
+    /**
+     * Sets the maximum number of rows written by one statement or JDBC batch in saveAll().  Defaults to 500.
+     * Multi-row inserts are also kept under 32767 bind values, so wide tables may insert fewer rows at a time.
+     * @param batchSize
+     * @return
+     */
+    public PersistenceContext setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of operations that async() runs against the database at once.  This should be no
+     * more than the size of the connection pool.  Defaults to 10.
+     * @param maxConcurrency
+     * @return
+     */
+    public PersistenceContext setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+        return this;
+    }
+
+    /**
+     * Gets an asynchronous view of this context that runs operations on virtual threads, or on a fixed pool of
+     * maxConcurrency threads if the JVM doesn't support them.
+     * @return
+     */
+    public synchronized AsyncPersistenceContext async() {
+        if(async == null) {
+            async = async(AsyncPersistenceContext.defaultExecutor(maxConcurrency), maxConcurrency);
+        }
+
+        return async;
+    }
+
+    /**
+     * Creates an asynchronous view of this context that runs operations on the specified executor.
+     * @param executor
+     * @param maxConcurrency The maximum number of operations to run against the database at once
+     * @return
+     * @throws IllegalStateException if this context is a session, since sessions aren't thread-safe
+     */
+    public AsyncPersistenceContext async(Executor executor, int maxConcurrency) {
+        if(identityMap != null) {
+            throw new IllegalStateException("Sessions are not thread-safe and can't be used asynchronously");
+        }
+
+        return new AsyncPersistenceContext(this, executor, maxConcurrency);
+    }
+
     public DSLContext getJooq() {
         return jooq;
     }
@@ -85,12 +452,40 @@ public class PersistenceContext {
             throw new InvalidModelTypeException("Model type \"" + type + "\" not found.  Did you forget to configure this type in the PersistenceContext?");
         }
 
-        Record record = jooq.select()
-                .from(md.getTable())
-                .where(field(md.getPrimaryKey()).equal(id))
-                .fetchOne();
+        if(identityMap != null) {
+            Model model = identityMap.get(md.getName(), id);
+            if(model != null) return model;
+        }
+
+        ModelCache cache = cacheFor(md);
+
+        if(cache != null) {
+            Map<String, Object> values = cache.get(id);
+
+            if(values == ModelCache.NOT_FOUND) {
+                return null;
+            } else if(values != null) {
+                return hydrate(ModelValues.copyOf(values, md.getLayout()), md);
+            }
+        }
+
+        long start = System.nanoTime();
+        ConcurrentMap<String, String> statements = md.getStatements();
+        String sql = statements.get("find");
+
+        if(sql == null) {
+            sql = compile(statements, "find", jooq.select().from(md.getTable()).where(field(md.getPrimaryKey()).equal(PARAMETER)));
+        }
+
+        List<ModelValues> rows = Statements.fetchValues(jooq, md, sql, id);
+        ModelValues values = rows.isEmpty() ? null : rows.get(0);
+
+        if(cache != null) {
+            cache.put(id, values == null ? ModelCache.NOT_FOUND : ModelValues.copyOf(values, md.getLayout()));
+            cache.getStatistics().recordLoad(System.nanoTime() - start);
+        }
 
-        return record == null ? null : new Model(record.intoMap(), md, this);
+        return values == null ? null : hydrate(values, md);
     }
 
     /**
@@ -112,12 +507,13 @@ public class PersistenceContext {
     public Model findBy(String type, Condition... conditions) {
         ModelType md = metaDataFor(type);
 
-        Record record = jooq.select()
-                .from(md.getTable())
-                .where(conditions)
-                .fetchOne();
+        List<ModelValues> rows = fetchValues(jooq.select().from(md.getTable()).where(conditions), md);
+
+        if(rows.size() > 1) {
+            throw new InvalidResultException("Query returned more than one model");
+        }
 
-        return new Model(record.intoMap(), md, this);
+        return rows.isEmpty() ? null : hydrate(rows.get(0), md);
     }
 
     /**
@@ -131,6 +527,9 @@ public class PersistenceContext {
     public List<Model> list(String type, String orderBy, boolean isAscending) {
         return findAllBy(type, new HashMap<String, Object>(), orderBy, isAscending);
     }
+    public List<Model> list(String type, Includes includes) {
+        return preload(list(type), includes);
+    }
 
     /**
      * Finds all matching models by a field value.
@@ -188,13 +587,18 @@ public class PersistenceContext {
             }
         }
 
-        List<Model> models = new LinkedList<Model>();
-
-        for(Record record:where.fetch()) {
-            models.add(new Model(record.intoMap(), md, this));
-        }
+        return hydrate(fetchValues(where, md), md);
+    }
 
-        return models;
+    /**
+     * Finds all models matching the specified conditions and preloads the included relationships.
+     * @param type
+     * @param includes The relationships to load for all models at once
+     * @param conditions
+     * @return
+     */
+    public List<Model> findAllBy(String type, Includes includes, Condition... conditions) {
+        return preload(findAllBy(type, null, false, conditions), includes);
     }
 
     /**
@@ -204,14 +608,11 @@ public class PersistenceContext {
      * @return
      */
     public List<Model> fromJooqResult(String type, Result<Record> result) {
-        ModelType md = metaDataFor(type);
-        List<Model> models = new LinkedList<Model>();
-
-        for(Record record:result) {
-            models.add(new Model(record.intoMap(), md, this));
-        }
+        return hydrate(result, metaDataFor(type));
+    }
 
-        return models;
+    public List<Model> fromJooqResult(String type, Result<Record> result, Includes includes) {
+        return preload(fromJooqResult(type, result), includes);
     }
 
     /**
@@ -226,11 +627,174 @@ public class PersistenceContext {
     }
 
     /**
-     * Saves a record, doing and insert or updated where appropriate.
+     * Gets one page of models using a keyset (seek) query, which stays fast no matter how deep the page is.
+     * Models are ordered by the sort column and then by primary key, so the sort column doesn't need to be unique.
+     * @param type The model type
+     * @param sortColumn The column to sort by, or null to sort by primary key only.  Rows where this column
+     *                   is null are not returned.
+     * @param isAscending
+     * @param pageSize The maximum number of models to return, at least 1
+     * @param continuationToken The token from the previous page, or null to get the first page
+     * @param conditions Additional jOOq conditions to filter by
+     * @return
+     */
+    public Page page(String type, String sortColumn, boolean isAscending, int pageSize, String continuationToken, Condition... conditions) {
+        if(pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be at least 1, not " + pageSize);
+        }
+
+        ModelType md = metaDataFor(type);
+        Field<Object> id = field(md.getPrimaryKey());
+        Field<Object> sort = sortColumn == null || sortColumn.equals(md.getPrimaryKey()) ? null : field(sortColumn);
+
+        SelectConditionStep<Record> where = jooq.select()
+                .from(md.getTable())
+                .where(conditions);
+
+        if(continuationToken != null) {
+            Object[] key = Page.decodeToken(continuationToken);
+
+            // a token from a page sorted differently has a different number of values
+            if(key.length != (sort == null ? 1 : 2)) {
+                throw new IllegalArgumentException("Invalid continuation token");
+            }
+
+            if(sort == null) {
+                where.and(isAscending ? id.gt(key[0]) : id.lt(key[0]));
+            } else {
+                Row2<Object, Object> row = row(sort, id);
+                where.and(isAscending ? row.gt(key[0], key[1]) : row.lt(key[0], key[1]));
+            }
+        } else if(sort != null) {
+            where.and(sort.isNotNull());
+        }
+
+        List<SortField<Object>> orderBy = new ArrayList<SortField<Object>>();
+
+        if(sort != null) {
+            orderBy.add(isAscending ? sort.asc() : sort.desc());
+        }
+
+        orderBy.add(isAscending ? id.asc() : id.desc());
+
+        // fetch one extra row to find out if there's another page
+        Result<Record> result = where.orderBy(orderBy).limit(pageSize + 1).fetch();
+        List<Model> models = new ArrayList<Model>(pageSize);
+        RowReader reader = new RowReader(md, result.fields());
+
+        for(int i = 0; i < result.size() && i < pageSize; i++) {
+            models.add(hydrate(reader.read(result.get(i)), md));
+        }
+
+        String nextToken = null;
+
+        if(result.size() > pageSize) {
+            Model last = models.get(pageSize - 1);
+            Object[] key = sort == null
+                    ? new Object[] { last.getId() }
+                    : new Object[] { last.getValues().get(sortColumn), last.getId() };
+            nextToken = Page.encodeToken(key);
+        }
+
+        return new Page(models, nextToken);
+    }
+
+    /**
+     * Opens a cursor over all models matching the specified conditions.  Rows are read from the database
+     * in batches of the configured fetch size as the cursor is iterated.
+     * @param type The model type
+     * @param conditions jOOq conditions to search for.  If none are given, all models are returned.
+     * @return A cursor that must be closed
+     */
+    public ModelCursor cursor(String type, Condition... conditions) {
+        return cursor(type, createJooqQuery(type).where(conditions));
+    }
+
+    /**
+     * Opens a cursor over the results of a jOOq query created with createJooqQuery().  The query is attached
+     * to the cursor's own connection, so it can't be executed again once the cursor is closed.
+     * @param type The model type
+     * @param query The query
+     * @return A cursor that must be closed
+     */
+    public ModelCursor cursor(String type, ResultQuery<Record> query) {
+        ModelType md = metaDataFor(type);
+
+        if(this.connection != null) {
+            // the transaction owns the connection
+            query.attach(jooq.configuration());
+            return new ModelCursor(query.fetchLazy(fetchSize), null, false, md, this);
+        }
+
+        Connection connection = null;
+        boolean startedTransaction = false;
+
+        try {
+            connection = dataSource.getConnection();
+
+            // postgres only honors the fetch size inside a transaction
+            if(connection.getAutoCommit()) {
+                connection.setAutoCommit(false);
+                startedTransaction = true;
+            }
+
+            query.attach(DSL.using(connection, dialect).configuration());
+
+            return new ModelCursor(query.fetchLazy(fetchSize), connection, startedTransaction, md, this);
+        } catch(SQLException e) {
+            release(connection, startedTransaction);
+            throw new DataAccessException("Could not open cursor for model type " + type, e);
+        } catch(RuntimeException e) {
+            release(connection, startedTransaction);
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a publisher of the models matching the specified conditions.  See ModelPublisher.
+     * @param type The model type
+     * @param conditions
+     * @return
+     */
+    public ModelPublisher publisher(String type, Condition... conditions) {
+        return new ModelPublisher(this, type, null, conditions);
+    }
+
+    /**
+     * Creates a publisher of the models returned by a jOOQ query, such as one built with createJooqQuery().
+     * See ModelPublisher.
+     * @param type The model type
+     * @param query
+     * @return
+     */
+    public ModelPublisher publisher(String type, ResultQuery<Record> query) {
+        return new ModelPublisher(this, type, query, null);
+    }
+
+    /**
+     * Saves a record, doing and insert or updated where appropriate.  New and changed models reachable through
+     * its relationships are saved with it, see saveAll().
      * @param model
      */
     public void save(Model model) {
-        save(model, null, null);
+        saveAll(Collections.singletonList(model));
+    }
+
+    /**
+     * Saves many models at once as a single unit of work.  The models, their changed BelongsTo parents and their
+     * hasMany items are ordered so that parents are written first, then each level of the graph is written with
+     * multi-row inserts that return generated ids and JDBC batches of updates, one table at a time.
+     * @param models
+     */
+    public void saveAll(Collection<Model> models) {
+        UnitOfWork work = new UnitOfWork(this);
+
+        for(Model model:models) {
+            validate(model);
+            work.add(model);
+        }
+
+        work.flush();
     }
 
     /**
@@ -239,9 +803,20 @@ public class PersistenceContext {
      */
     public void delete(Model model) {
         ModelType md = model.getType();
-        jooq.delete(table(md.getTable()))
-                .where(field(md.getPrimaryKey()).equal(model.getValues().get(md.getPrimaryKey())))
-                .execute();
+        ConcurrentMap<String, String> statements = md.getStatements();
+        String sql = statements.get("delete");
+
+        if(sql == null) {
+            sql = compile(statements, "delete", jooq.delete(table(md.getTable())).where(field(md.getPrimaryKey()).equal(PARAMETER)));
+        }
+
+        Statements.execute(jooq, sql, model.getValues().get(md.getPrimaryKey()));
+
+        if(identityMap != null) {
+            identityMap.remove(md.getName(), model.getId());
+        }
+
+        evict(model);
     }
 
     /**
@@ -264,7 +839,7 @@ public class PersistenceContext {
         if(rel instanceof HasMany) {
             return (T) fetchHasMany((HasMany) rel, model.getId());
         } else if(rel instanceof HasAndBelongsToMany) {
-            return (T) fetchHasAndBelongsToMany((HasAndBelongsToMany) rel, model.getId());
+            return (T) fetchHasAndBelongsToMany((HasAndBelongsToMany) rel, model);
         } else if(rel instanceof BelongsTo) {
             return (T) fetchBelongsTo((BelongsTo) rel, model.getValues().get(rel.getColumn()));
         } else {
@@ -272,130 +847,329 @@ public class PersistenceContext {
         }
     }
 
-    // Begin private methods
+    /**
+     * Loads the included relationships for all of the specified models, using one query per relationship
+     * rather than one per model.  The loaded values are stored on each model so that subsequent calls to
+     * getList() and getModel() don't hit the database.
+     * @param models Models of the same type
+     * @param includes The relationships to load
+     * @return the models
+     */
+    public List<Model> preload(List<Model> models, Includes includes) {
+        if(models.isEmpty()) return models;
 
-    private void save(Model model, HasMany relationship, Object foreignKeyValue) {
-        validate(model);
-        checkAndIncrementVersion(model);
+        ModelType md = models.get(0).getType();
 
-        if(model.getId() == null) {
-            insert(model, relationship, foreignKeyValue);
-        } else {
-            update(model, relationship, foreignKeyValue);
+        for(String name:includes.getRelationships()) {
+            Relationship<?> rel = md.relationshipFor(name);
+
+            if(rel instanceof HasMany) {
+                preloadHasMany((HasMany) rel, models);
+            } else if(rel instanceof HasAndBelongsToMany) {
+                preloadHasAndBelongsToMany((HasAndBelongsToMany) rel, models);
+            } else if(rel instanceof BelongsTo) {
+                preloadBelongsTo((BelongsTo) rel, models);
+            } else {
+                throw new IllegalArgumentException("Model type \"" + md.getName() + "\" has no relationship named \"" + name + "\"");
+            }
         }
+
+        return models;
     }
 
     /**
-     * Inserts a new record
-     * @param model
+     * Returns a connection used by a cursor or transaction to the pool, ending the transaction if the caller
+     * started one.  Work that wasn't committed is rolled back.
+     * @param connection
+     * @param endTransaction true if the caller turned off auto-commit to open the connection
      */
-    // TODO check for unsaved transient belongsTo
-    private void insert(Model model, HasMany relationship, Object foreignKeyValue) {
-        ModelType md = model.getType();
+    static void release(Connection connection, boolean endTransaction) {
+        if(connection == null) return;
+
+        try {
+            try {
+                if(endTransaction) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+            } finally {
+                connection.close();
+            }
+        } catch(SQLException e) {
+            throw new DataAccessException("Could not release connection", e);
+        }
+    }
+
+    /**
+     * Creates a model from a row of values.  In a session, the model already in the identity map is
+     * returned instead if there is one.
+     * @param values The row values
+     * @param md The model type
+     * @return
+     */
+    Model hydrate(ModelValues values, ModelType md) {
+        if(identityMap == null) {
+            return new Model(values, md, this);
+        }
 
-        jooq.insertInto(table(md.getTable()))
-                .set(toFieldValueMap(model, relationship, foreignKeyValue))
-                .execute();
+        Model model = identityMap.get(md.getName(), values.get(md.getPrimaryKey()));
 
-        // set generated id on newly saved record
-        Record returned = jooq.select(getGeneratedKeyField()).fetchOne();
-        String primaryKey = md.getPrimaryKey();
-        model.set(primaryKey, returned.getValue(primaryKey, Integer.class));
+        if(model == null) {
+            model = new Model(values, md, this);
+            identityMap.put(model);
+        }
 
-        saveCollections(model);
+        return model;
     }
 
+    // Begin private methods
+
     /**
-     * Updates an existing record.
-     * @param model
+     * Creates models from rows of values.
+     * @param rows
+     * @param md The model type
+     * @return
+     */
+    private List<Model> hydrate(List<ModelValues> rows, ModelType md) {
+        List<Model> models = new ArrayList<Model>(rows.size());
+
+        for(ModelValues values:rows) {
+            models.add(hydrate(values, md));
+        }
+
+        return models;
+    }
+
+    /**
+     * Runs a query and reads its rows straight from the JDBC result set into model values, without creating
+     * a jOOQ record for each row.
+     * @param query
+     * @param md The model type
+     * @return
+     */
+    private List<ModelValues> fetchValues(ResultQuery<Record> query, ModelType md) {
+        Cursor<Record> cursor = query.fetchLazy();
+
+        try {
+            return RowReader.readAll(md, cursor.resultSet());
+        } catch(SQLException e) {
+            throw new DataAccessException("Could not read the results of " + query.getSQL(), e);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Creates models from all rows of a query result, resolving the column layout only once.
+     * @param result
+     * @param md The model type
+     * @return
      */
-    private void update(Model model, HasMany relationship, Object foreignKeyValue) {
-        ModelType type = model.getType();
+    private List<Model> hydrate(Result<Record> result, ModelType md) {
+        List<Model> models = new ArrayList<Model>(result.size());
+        RowReader reader = new RowReader(md, result.fields());
 
-        jooq.update(table(type.getTable()))
-                .set(toFieldValueMap(model, relationship, foreignKeyValue))
-                .where(field(type.getPrimaryKey()).equal(model.getId())).execute();
+        for(Record record:result) {
+            models.add(hydrate(reader.read(record), md));
+        }
 
-        saveCollections(model);
+        return models;
     }
 
     /**
-     * Checks that the model's version matches the value currently stored in the database.
-     * If so, the version number is incremented, otherwise a OptimisticLockingException is thrown.
-     * This method will skip version checking and set the version to 0 if the model is unsaved.
+     * Removes a model from its type's second-level cache after it has been written.
      * @param model
-     * @throws OptimisticLockingException
      */
-    private void checkAndIncrementVersion(Model model) {
-        ModelType type = model.getType();
+    private void evict(Model model) {
+        evict(model.getType(), model.getId());
+    }
 
-        if(type.getVersionColumn() == null) return;
+    /**
+     * Removes a row from a type's second-level cache after it has been written.
+     * @param md The model type
+     * @param id The row's primary key value
+     */
+    private void evict(ModelType md, Object id) {
+        ModelCache cache = md.getCache();
+
+        if(cache != null && id != null) {
+            cache.evict(id);
+
+            if(evictAfterCommit != null) {
+                Set<Object> ids = evictAfterCommit.get(md);
+
+                if(ids == null) {
+                    ids = new HashSet<Object>();
+                    evictAfterCommit.put(md, ids);
+                }
+
+                ids.add(id);
+            }
+        }
+    }
+
+    /**
+     * Gets the second-level cache of a model type.  Transactions bypass the cache so that rows they haven't
+     * committed are never shared with other contexts.
+     * @param md
+     * @return The cache, or null if there isn't one or this is a transaction's session
+     */
+    private ModelCache cacheFor(ModelType md) {
+        return connection == null ? md.getCache() : null;
+    }
 
-        if(model.getId() == null) {
+    /**
+     * Sets the version of an unsaved model to 0 if its type is versioned.
+     * @param model
+     */
+    private void initVersion(Model model) {
+        if(model.getType().getVersionColumn() != null) {
             model.setVersion(0);
-        } else {
-            Integer version = model.getVersion();
+        }
+    }
 
-            Record r = jooq.select(field(type.getVersionColumn()))
-                    .from(table(type.getTable()))
-                    .where(field(type.getPrimaryKey()).equal(model.getId())).fetchOne();
+    /**
+     * Renders a statement for a model type and keeps it on the type, so that it's only rendered once.
+     * @param statements The type's statements, got before the query read any of the type's settings
+     * @param key What the statement is for, including everything its SQL depends on besides the type's
+     *            table, primary key and version column
+     * @param query The statement, with a parameter for each value
+     * @return The SQL
+     */
+    private String compile(ConcurrentMap<String, String> statements, String key, QueryPart query) {
+        return remember(statements, key, jooq.render(query));
+    }
 
-            if(!r.getValue(type.getVersionColumn()).equals(version)) {
-                throw new OptimisticLockingException();
-            } else {
-                model.setVersion(version + 1);
+    private String remember(ConcurrentMap<String, String> statements, String key, String sql) {
+        // keys vary with column sets, so make room in types that have many rather than stop keeping new ones
+        if(statements.size() >= MAX_STATEMENTS) {
+            Iterator<String> keys = statements.keySet().iterator();
+
+            if(keys.hasNext()) {
+                keys.next();
+                keys.remove();
             }
         }
+
+        statements.putIfAbsent(key, sql);
+        return sql;
+    }
+
+    /**
+     * Gets the compiled update of some columns of a record.  For versioned types the version is incremented by
+     * the update itself and the update only matches the row if its version is the one the model was loaded with,
+     * so the check and the write happen in a single statement.  The statement is bound to the column values in
+     * order, then the id, then the expected version.
+     * @param md The model type
+     * @param columns The columns to set, not including the version column
+     * @return
+     */
+    private String updateSql(ModelType md, Collection<String> columns) {
+        String key = "update:" + columns;
+        ConcurrentMap<String, String> statements = md.getStatements();
+        String sql = statements.get(key);
+        if(sql != null) return sql;
+
+        Map<Field<?>, Object> values = new LinkedHashMap<Field<?>, Object>();
+
+        for(String column:columns) {
+            values.put(field(column), PARAMETER);
+        }
+
+        Condition where = field(md.getPrimaryKey()).equal(PARAMETER);
+        String versionColumn = md.getVersionColumn();
+
+        if(versionColumn != null) {
+            Field<Integer> version = field(versionColumn, Integer.class);
+            values.put(version, version.add(inline(1)));
+            where = where.and(version.equal(field("?", Integer.class)));
+        }
+
+        return compile(statements, key, jooq.update(table(md.getTable())).set(values).where(where));
+    }
+
+    /**
+     * Gets the compiled multi-row insert of some columns.  Dialects that support INSERT ... RETURNING return
+     * every column, including database defaults such as a version column.
+     * @param md The model type
+     * @param columns The columns to insert
+     * @param rows The number of rows
+     * @return
+     */
+    private String insertSql(ModelType md, List<String> columns, int rows) {
+        String key = "insert:" + columns + ":" + rows;
+        ConcurrentMap<String, String> statements = md.getStatements();
+        String sql = statements.get(key);
+        if(sql != null) return sql;
+
+        List<Field<?>> fields = new ArrayList<Field<?>>();
+        Field<?>[] params = new Field<?>[columns.size()];
+
+        for(int i = 0; i < params.length; i++) {
+            fields.add(field(columns.get(i)));
+            params[i] = PARAMETER;
+        }
+
+        InsertValuesStepN<Record> insert = jooq.insertInto(table(md.getTable()), fields);
+
+        for(int i = 0; i < rows; i++) {
+            insert.values(params);
+        }
+
+        // jOOQ only renders RETURNING for tables with generated metadata, so append it ourselves
+        return remember(statements, key, jooq.render(insert) + (isReturningSupported() ? " returning *" : ""));
+    }
+
+    private boolean isReturningSupported() {
+        return dialect.family() == SQLDialect.POSTGRES || dialect.family() == SQLDialect.FIREBIRD;
+    }
+
+    /**
+     * Checks the number of rows an update affected, incrementing the model's version if it succeeded.
+     * @param model
+     * @param count The update count, or Statement.SUCCESS_NO_INFO if the driver didn't report one
+     * @throws OptimisticLockingException if a versioned update didn't match any row
+     */
+    private void checkUpdated(Model model, int count) {
+        if(model.getType().getVersionColumn() == null) return;
+
+        if(count == 0) {
+            throw new OptimisticLockingException();
+        }
+
+        Integer version = model.getVersion();
+        model.setLoaded(model.getType().getVersionColumn(), version + 1);
     }
 
     /**
-     * Gets a map of field to value for all model properties
+     * Gets the columns and values of model properties, ordered by column name so that models with the same
+     * columns list them in the same order.  BelongsTo relationships are stored as the related model's id.
      * @param model
+     * @param onlyDirty true to only include fields that were set since the model was loaded or last saved
      * @return
      */
-    private Map<Field<?>, Object> toFieldValueMap(Model model, HasMany relationship, Object foreignKeyValue) {
-        Map<Field<?>, Object> result = new HashMap<Field<?>, Object>();
+    private SortedMap<String, Object> toColumnValueMap(Model model, boolean onlyDirty) {
+        SortedMap<String, Object> result = new TreeMap<String, Object>();
         ModelType md = model.getType();
         String primaryKey = md.getPrimaryKey();
+        Set<String> dirtyFields = model.getDirtyFields();
 
         for(Map.Entry<String, Object> entry:model.getValues().entrySet()) {
             String column = entry.getKey();
             Object value = entry.getValue();
             Relationship rel = md.relationshipFor(column);
 
-            if(!column.equals(primaryKey) && !(rel instanceof CollectionRelationship)) {
-                Field<Object> f;
+            if(onlyDirty && !dirtyFields.contains(column)) continue;
 
+            if(!column.equals(primaryKey) && !(rel instanceof CollectionRelationship)) {
                 if(rel instanceof BelongsTo) {
-                    f = field(rel.getColumn());
-                    value = value == null ? null : ((Model) value).getId();
-                } else {
-                    f = field(column);
-                }
-
-                if(value == null) {
-                    result.put(f, castNull(f));
+                    result.put(rel.getColumn(), value == null ? null : ((Model) value).getId());
                 } else {
-                    result.put(f, value);
+                    result.put(column, value);
                 }
             }
         }
 
-        // add order and foreign key value if saving as part of a has many
-        if(relationship != null) {
-            if(relationship.getOrderColumn() != null) {
-                result.put(field(relationship.getOrderColumn()), model.getOrder());
-            }
-
-            Field<Object> f = field(relationship.getColumn());
-
-            if(foreignKeyValue == null) {
-                result.put(f, castNull(f));
-            } else {
-                result.put(f, foreignKeyValue);
-            }
-        }
-
         return result;
     }
 
@@ -412,102 +1186,502 @@ public class PersistenceContext {
     }
 
     /**
-     * Saves all collection relationship for a model
+     * Adds a model to the list for its type.
+     * @param groups
      * @param model
      */
-    private void saveCollections(Model model) {
-        ModelType md = model.getType();
+    private void groupByType(Map<ModelType, List<Model>> groups, Model model) {
+        List<Model> group = groups.get(model.getType());
 
-        for(Relationship rel:md.getRelationships().values()) {
-            if(rel instanceof HasMany) {
-                save((HasMany) rel, model);
-            } else if(rel instanceof HasAndBelongsToMany) {
-                save((HasAndBelongsToMany) rel, model);
+        if(group == null) {
+            group = new ArrayList<Model>();
+            groups.put(model.getType(), group);
+        }
+
+        group.add(model);
+    }
+
+    /**
+     * Inserts new models of one type using multi-row inserts, then assigns the generated ids.  Models are
+     * grouped by the set of columns they have values for, since each insert needs a single column list.
+     * @param md The model type
+     * @param models The new models
+     */
+    private void insertAll(ModelType md, List<Model> models) {
+        Map<List<String>, List<Model>> byColumns = new LinkedHashMap<List<String>, List<Model>>();
+        Map<Model, SortedMap<String, Object>> rows = new HashMap<Model, SortedMap<String, Object>>();
+
+        for(Model model:models) {
+            SortedMap<String, Object> row = toColumnValueMap(model, false);
+            rows.put(model, row);
+
+            List<String> columns = new ArrayList<String>(row.keySet());
+            List<Model> group = byColumns.get(columns);
+
+            if(group == null) {
+                group = new ArrayList<Model>();
+                byColumns.put(columns, group);
+            }
+
+            group.add(model);
+        }
+
+        for(Map.Entry<List<String>, List<Model>> entry:byColumns.entrySet()) {
+            List<Model> group = entry.getValue();
+            int rowsPerInsert = Math.max(1, Math.min(batchSize, MAX_PARAMETERS / Math.max(1, entry.getKey().size())));
+
+            // inserts have a power of two rows, so only a few statements are compiled for each set of columns
+            for(int start = 0, size; start < group.size(); start += size) {
+                size = Integer.highestOneBit(Math.min(rowsPerInsert, group.size() - start));
+                List<Model> chunk = group.subList(start, start + size);
+                String sql = insertSql(md, entry.getKey(), chunk.size());
+                List<Object> binds = new ArrayList<Object>(chunk.size() * entry.getKey().size());
+
+                for(Model model:chunk) {
+                    binds.addAll(rows.get(model).values());
+                }
+
+                // generated keys are returned in the order the rows were listed
+                Result<Record> keys = isReturningSupported()
+                        ? Statements.fetch(jooq, sql, binds.toArray())
+                        : Statements.insertReturningKeys(jooq, sql, new String[] { md.getPrimaryKey() }, binds.toArray());
+
+                for(int i = 0; i < chunk.size(); i++) {
+                    Model model = chunk.get(i);
+                    setReturnedValues(model, keys.get(i));
+
+                    if(identityMap != null) {
+                        identityMap.put(model);
+                    }
+
+                    evict(model);
+                }
             }
         }
     }
 
     /**
-     * Saves links for a HasMany relationship
+     * Updates the changed columns of models of one type using JDBC batches.
+     * @param md The model type
+     * @param models The changed models
+     */
+    private void updateAll(ModelType md, List<Model> models) {
+        Map<String, List<Model>> bySql = new LinkedHashMap<String, List<Model>>();
+        Map<Model, Object[]> binds = new HashMap<Model, Object[]>();
+        String versionColumn = md.getVersionColumn();
+
+        for(Model model:models) {
+            SortedMap<String, Object> values = toColumnValueMap(model, true);
+
+            if(versionColumn != null) {
+                values.remove(versionColumn);
+            }
+
+            if(versionColumn == null && values.isEmpty()) continue;
+
+            List<Object> modelBinds = new ArrayList<Object>(values.values());
+            modelBinds.add(model.getId());
+
+            if(versionColumn != null) {
+                modelBinds.add(model.getVersion());
+            }
+
+            String sql = updateSql(md, values.keySet());
+            List<Model> group = bySql.get(sql);
+
+            if(group == null) {
+                group = new ArrayList<Model>();
+                bySql.put(sql, group);
+            }
+
+            group.add(model);
+            binds.put(model, modelBinds.toArray());
+        }
+
+        OptimisticLockingException conflict = null;
+
+        for(Map.Entry<String, List<Model>> entry:bySql.entrySet()) {
+            List<Model> group = entry.getValue();
+
+            for(int start = 0; start < group.size(); start += batchSize) {
+                List<Model> chunk = group.subList(start, Math.min(start + batchSize, group.size()));
+                List<Object[]> rows = new ArrayList<Object[]>(chunk.size());
+
+                for(Model model:chunk) {
+                    rows.add(binds.get(model));
+                }
+
+                try {
+                    int[] counts = rows.size() == 1
+                            ? new int[] { Statements.execute(jooq, entry.getKey(), rows.get(0)) }
+                            : Statements.executeBatch(jooq, entry.getKey(), rows);
+
+                    // check every row so the models that were written still get their new version
+                    for(int i = 0; i < counts.length; i++) {
+                        try {
+                            checkUpdated(chunk.get(i), counts[i]);
+                        } catch(OptimisticLockingException e) {
+                            conflict = e;
+                        }
+                    }
+                } finally {
+                    // evicted after the write so that a concurrent find can't cache the old row again
+                    for(Model model:chunk) {
+                        evict(model);
+                    }
+                }
+            }
+        }
+
+        if(conflict != null) {
+            throw conflict;
+        }
+    }
+
+    /**
+     * Writes one level of a unit of work: new models are inserted and changed models updated, one table at a
+     * time.  The foreign key and position of each item in a written model's hasMany collections are then set,
+     * so that the items are written with the next level.
+     * @param models
+     */
+    void writeAll(List<Model> models) {
+        Map<ModelType, List<Model>> inserts = new LinkedHashMap<ModelType, List<Model>>();
+        Map<ModelType, List<Model>> updates = new LinkedHashMap<ModelType, List<Model>>();
+
+        for(Model model:models) {
+            if(model.getId() == null) {
+                validate(model);
+                initVersion(model);
+                groupByType(inserts, model);
+            } else if(model.isRowChanged()) {
+                groupByType(updates, model);
+            }
+        }
+
+        for(Map.Entry<ModelType, List<Model>> entry:inserts.entrySet()) {
+            insertAll(entry.getKey(), entry.getValue());
+        }
+
+        for(Map.Entry<ModelType, List<Model>> entry:updates.entrySet()) {
+            updateAll(entry.getKey(), entry.getValue());
+        }
+
+        for(Model model:models) {
+            for(Relationship<?> rel:model.getType().getRelationships().values()) {
+                if(!(rel instanceof HasMany)) continue;
+
+                HasMany hasMany = (HasMany) rel;
+                List<Model> list = (List<Model>) model.getValues().get(rel.getName());
+                if(list == null) continue;
+
+                boolean changed = model.isCollectionChanged(rel.getName());
+                int order = 0;
+
+                // rewrite positions only if the collection changed
+                for(Model item:list) {
+                    item.setOrder(order);
+
+                    if(changed || item.getId() == null) {
+                        item.set(hasMany.getColumn(), model.getId());
+
+                        if(hasMany.getOrderColumn() != null) {
+                            item.set(hasMany.getOrderColumn(), order);
+                        }
+                    }
+
+                    order++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the collection changes of a unit of work once all of its models have been saved: orphaned hasMany
+     * items are removed and HasAndBelongsToMany links are saved.
+     * @param models
+     */
+    void writeCollections(List<Model> models) {
+        for(Model model:models) {
+            for(Relationship<?> rel:model.getType().getRelationships().values()) {
+                if(rel instanceof HasMany) {
+                    List<Model> list = (List<Model>) model.getValues().get(rel.getName());
+
+                    if(list != null && model.isCollectionChanged(rel.getName())) {
+                        deleteOrphans((HasMany) rel, model, list);
+                    }
+                } else if(rel instanceof HasAndBelongsToMany) {
+                    save((HasAndBelongsToMany) rel, model);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the values returned by an insert onto the model without marking them dirty.
+     * @param model
+     * @param returned
+     */
+    private void setReturnedValues(Model model, Record returned) {
+        for(Field<?> f:returned.fields()) {
+            model.setLoaded(f.getName(), returned.getValue(f));
+        }
+    }
+
+    /**
+     * Removes records that are no longer in a hasMany collection, scoped to the owner.  Orphans are deleted, or
+     * have their foreign key set to null if the relationship doesn't delete orphans.  Dialects that support
+     * RETURNING do this with a single statement; otherwise, or when too many items are kept to list them in one
+     * statement, the orphans' ids are selected first and they're removed in chunks.  Either way the orphans are
+     * then evicted by id, whether or not they were ever loaded.
      * @param rel The relationship
      * @param model The owner model
+     * @param items The items in the collection
      */
-    private void save(HasMany rel, Model model) {
-        List<Model> items = model.get(rel.getName(), List.class);
-        List<Object> idsToKeep = new LinkedList<Object>();
+    private void deleteOrphans(HasMany rel, Model model, List<Model> items) {
         ModelType itemMetaData = metaDataFor(rel.getType());
+        Field<Object> foreignKey = field(rel.getColumn());
+        Field<Object> primaryKey = field(itemMetaData.getPrimaryKey());
+        Set<Object> idsToKeep = idsOf(items);
+        Condition owned = foreignKey.equal(model.getId());
+        List<Object> orphanIds = new ArrayList<Object>();
+
+        if(isReturningSupported() && idsToKeep.size() < MAX_PARAMETERS - 2) {
+            Query query = orphanQuery(rel, itemMetaData, idsToKeep.isEmpty() ? owned : owned.and(primaryKey.notIn(idsToKeep)));
+            orphanIds.addAll(jooq.fetch(query.getSQL() + " returning " + itemMetaData.getPrimaryKey(),
+                    query.getBindValues().toArray()).getValues(0));
+        } else {
+            for(Object id:jooq.select(primaryKey).from(itemMetaData.getTable()).where(owned).fetch(0)) {
+                if(!idsToKeep.contains(id)) orphanIds.add(id);
+            }
 
-        if(items != null) {
-            int order = 0;
-
-            // cascade save all items in collection
-            for(Iterator<Model> i = items.iterator(); i.hasNext();) {
-                Model item = i.next();
-                item.setOrder(order++);
-                save(item, rel, model.getId());
-                idsToKeep.add(item.getId());
-            }
-
-            // delete any records that weren't in the collection
-            if(!idsToKeep.isEmpty()) {
-                Result<Record> recordsToDelete = jooq.select()
-                        .from(itemMetaData.getTable())
-                        .where(field(itemMetaData.getPrimaryKey()).notIn(idsToKeep))
-                        .fetch();
-
-                for(Record r:recordsToDelete) {
-                    if(rel.isDeleteOrphans()) {
-                        Model item = new Model(r.intoMap(), itemMetaData, this);
-                        delete(item);
-                    } else {
-                        save(model, rel, null);
-                    }
-                }
+            int chunkSize = Math.max(1, Math.min(batchSize, MAX_PARAMETERS - 2));
+
+            for(int start = 0; start < orphanIds.size(); start += chunkSize) {
+                List<Object> chunk = orphanIds.subList(start, Math.min(start + chunkSize, orphanIds.size()));
+                orphanQuery(rel, itemMetaData, owned.and(primaryKey.in(chunk))).execute();
+            }
+        }
+
+        // forget the orphans, the rows were changed without loading them
+        for(Object id:orphanIds) {
+            if(identityMap != null) {
+                identityMap.remove(itemMetaData.getName(), id);
             }
+
+            evict(itemMetaData, id);
+        }
+    }
+
+    /**
+     * Builds the statement that deletes orphans, or sets their foreign key to null.
+     * @param rel The relationship
+     * @param itemMetaData The type of the items
+     * @param orphans Matches the orphaned rows
+     * @return
+     */
+    private Query orphanQuery(HasMany rel, ModelType itemMetaData, Condition orphans) {
+        if(rel.isDeleteOrphans()) {
+            return jooq.delete(table(itemMetaData.getTable())).where(orphans);
+        }
+
+        Field<Object> foreignKey = field(rel.getColumn());
+        Map<Field<?>, Object> values = new HashMap<Field<?>, Object>();
+        values.put(foreignKey, castNull(foreignKey));
+
+        if(itemMetaData.getVersionColumn() != null) {
+            Field<Integer> version = field(itemMetaData.getVersionColumn(), Integer.class);
+            values.put(version, version.add(1));
         }
+
+        return jooq.update(table(itemMetaData.getTable())).set(values).where(orphans);
     }
 
     /**
-     * Saves links for a HasAndBelongsToMany relationship
+     * Saves links for a HasAndBelongsToMany relationship by diffing the collection against the saved links.
+     * Links whose items stay in order are left alone, so positions may have gaps; moved links have their
+     * position updated, and the remaining changes are written with one DELETE and multi-row INSERTs.
      * @param rel The relationship
      * @param model The owner model
      */
     private void save(HasAndBelongsToMany rel, Model model) {
-        List<?> items = model.get(rel.getName(), List.class);
-        if(items == null) return;
+        List<?> items = (List<?>) model.getValues().get(rel.getName());
+        if(items == null || !model.isCollectionChanged(rel.getName())) return;
 
-        int order = 0;
-        Record[] relations = fetchRelations(rel, model.getId());
+        Record[] links = fetchRelations(rel, model);
         HasAndBelongsToManyProxy proxy = rel.getProxy();
+        Object[] ids = new Object[items.size()];
+        int i = 0;
 
-        // save each position in the collection
-        for(Iterator<?> i = items.iterator(); i.hasNext();) {
-            Object id = idFor(i.next(), proxy);
+        for(Object item:items) {
+            ids[i++] = idFor(item, proxy);
+        }
 
-            // look for a saved link to update by position
-            Record link = relations.length > order ? relations[order] : null;
+        // match each item to the first unused saved link to the same id
+        Map<Object, LinkedList<Integer>> linksById = new HashMap<Object, LinkedList<Integer>>();
+        Map<Object, Integer> linkCounts = new HashMap<Object, Integer>();
+        int[] positions = new int[links.length];
 
-            if(link == null) {
-                // insert a new position
-                jooq.insertInto(table(rel.getTable()))
-                        .set(field(rel.getForeignKeyColumn()), model.getId())
-                        .set(field(rel.getColumn()), id)
-                        .set(field(rel.getOrderColumn()), order)
-                        .execute();
-            } else {
-                // update the saved position
-                link.setValue(field(rel.getColumn()), id);
-                jooq.update(table(rel.getTable())).set(link);
+        for(int l = 0; l < links.length; l++) {
+            Object id = links[l].getValue(rel.getColumn());
+            positions[l] = links[l].getValue(rel.getOrderColumn(), Integer.class);
+
+            if(!linksById.containsKey(id)) {
+                linksById.put(id, new LinkedList<Integer>());
+                linkCounts.put(id, 0);
             }
 
-            order++;
+            linksById.get(id).add(l);
+            linkCounts.put(id, linkCounts.get(id) + 1);
+        }
+
+        int[] matched = new int[ids.length];
+        boolean[] used = new boolean[links.length];
+
+        for(i = 0; i < ids.length; i++) {
+            LinkedList<Integer> candidates = linksById.get(ids[i]);
+            matched[i] = candidates == null || candidates.isEmpty() ? -1 : candidates.removeFirst();
+            if(matched[i] != -1) used[matched[i]] = true;
+        }
+
+        int[] newPositions = new int[ids.length];
+        boolean[] kept = keptLinks(matched);
+
+        if(!assignPositions(matched, kept, positions, newPositions)) {
+            // no room between the kept links, so renumber from 0
+            for(i = 0; i < ids.length; i++) {
+                newPositions[i] = i;
+                kept[i] = matched[i] != -1 && positions[matched[i]] == i;
+            }
         }
 
-        // delete positions greater than the highest position saved
-        jooq.delete(table(rel.getTable()))
-                .where(field(rel.getForeignKeyColumn()).equal(model.getId())
-                        .and(field(rel.getOrderColumn()).ge(order)))
-                .execute();
+        Field<Object> foreignKey = field(rel.getForeignKeyColumn());
+        Field<Object> column = field(rel.getColumn());
+        Field<Object> orderColumn = field(rel.getOrderColumn());
+        List<Object> deletedPositions = new ArrayList<Object>();
+        List<Query> updates = new ArrayList<Query>();
+        List<Integer> inserts = new ArrayList<Integer>();
+
+        for(int l = 0; l < links.length; l++) {
+            if(!used[l]) deletedPositions.add(positions[l]);
+        }
+
+        for(i = 0; i < ids.length; i++) {
+            if(matched[i] == -1) {
+                inserts.add(i);
+            } else if(!kept[i]) {
+                if(linkCounts.get(ids[i]) > 1) {
+                    // duplicate links can't be told apart by id, so replace them
+                    deletedPositions.add(positions[matched[i]]);
+                    inserts.add(i);
+                } else {
+                    updates.add(jooq.update(table(rel.getTable()))
+                            .set(orderColumn, (Object) newPositions[i])
+                            .where(foreignKey.equal(model.getId()).and(column.equal(ids[i]))));
+                }
+            }
+        }
+
+        if(!deletedPositions.isEmpty()) {
+            jooq.delete(table(rel.getTable()))
+                    .where(foreignKey.equal(model.getId()).and(orderColumn.in(deletedPositions)))
+                    .execute();
+        }
+
+        for(int start = 0; start < updates.size(); start += batchSize) {
+            jooq.batch(updates.subList(start, Math.min(start + batchSize, updates.size()))).execute();
+        }
+
+        int rowsPerInsert = Math.max(1, Math.min(batchSize, MAX_PARAMETERS / 3));
+
+        for(int start = 0; start < inserts.size(); start += rowsPerInsert) {
+            InsertValuesStep3<Record, Object, Object, Object> insert = jooq.insertInto(table(rel.getTable()), foreignKey, column, orderColumn);
+
+            for(int index:inserts.subList(start, Math.min(start + rowsPerInsert, inserts.size()))) {
+                insert = insert.values(model.getId(), ids[index], newPositions[index]);
+            }
+
+            insert.execute();
+        }
+    }
+
+    /**
+     * Finds the largest set of matched links that are already in collection order, which can be kept as is.
+     * @param matched The index of the saved link matched to each item, or -1
+     * @return Whether each item's link is kept
+     */
+    private boolean[] keptLinks(int[] matched) {
+        // longest increasing subsequence of the matched link indexes
+        int[] tails = new int[matched.length];
+        int[] previous = new int[matched.length];
+        int length = 0;
+
+        for(int i = 0; i < matched.length; i++) {
+            if(matched[i] == -1) continue;
+
+            int low = 0, high = length;
+
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+                if(matched[tails[mid]] < matched[i]) low = mid + 1; else high = mid;
+            }
+
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            if(low == length) length++;
+        }
+
+        boolean[] kept = new boolean[matched.length];
+
+        for(int i = length > 0 ? tails[length - 1] : -1; i != -1; i = previous[i]) {
+            kept[i] = true;
+        }
+
+        return kept;
+    }
+
+    /**
+     * Chooses positions for the items whose links aren't kept, spacing them between the kept links around them.
+     * @param matched The index of the saved link matched to each item, or -1
+     * @param kept Whether each item's link is kept
+     * @param positions The positions of the saved links
+     * @param newPositions Receives the position of each item
+     * @return false if there isn't room between two kept links
+     */
+    private boolean assignPositions(int[] matched, boolean[] kept, int[] positions, int[] newPositions) {
+        int start = 0;
+
+        while(start < matched.length) {
+            if(kept[start]) {
+                newPositions[start] = positions[matched[start]];
+                start++;
+                continue;
+            }
+
+            int end = start;
+            while(end < matched.length && !kept[end]) end++;
+
+            int count = end - start;
+            boolean hasLow = start > 0, hasHigh = end < matched.length;
+            long low = hasLow ? positions[matched[start - 1]] : 0;
+            long high = hasHigh ? positions[matched[end]] : 0;
+
+            for(int j = 0; j < count; j++) {
+                if(hasLow && hasHigh) {
+                    if(high - low <= count) return false;
+                    newPositions[start + j] = (int) (low + (j + 1) * (high - low) / (count + 1));
+                } else if(hasHigh) {
+                    newPositions[start + j] = (int) (high - count + j);
+                } else if(hasLow) {
+                    newPositions[start + j] = (int) (low + 1 + j);
+                } else {
+                    newPositions[start + j] = j;
+                }
+            }
+
+            start = end;
+        }
+
+        return true;
     }
 
     /**
@@ -528,25 +1702,25 @@ public class PersistenceContext {
     /**
      * Fetches the link table records for a HasAndBelongsToMany relationship
      * @param rel The relationship
-     * @param id The id of the owner model
+     * @param model The owner model
      * @return
      */
-    private Record[] fetchRelations(HasAndBelongsToMany rel, Object id) {
-        Result<Record> result = jooq.select()
-                .from(rel.getTable())
-                .where(field(rel.getForeignKeyColumn()).equal(id))
-                .orderBy(field(rel.getOrderColumn()))
-                .fetch();
+    private Record[] fetchRelations(HasAndBelongsToMany rel, Model model) {
+        ModelType md = model.getType();
+        String key = "links:" + rel.getTable() + ":" + rel.getForeignKeyColumn() + ":" + rel.getOrderColumn();
+        ConcurrentMap<String, String> statements = md.getStatements();
+        String sql = statements.get(key);
+
+        if(sql == null) {
+            sql = compile(statements, key, jooq.select()
+                    .from(rel.getTable())
+                    .where(field(rel.getForeignKeyColumn()).equal(PARAMETER))
+                    .orderBy(field(rel.getOrderColumn())));
+        }
 
-        return result.toArray(new Record[result.size()]);
-    }
+        Result<Record> result = Statements.fetch(jooq, sql, model.getId());
 
-    /**
-     * Gets the field for retrieving a newly inserted id.
-     * @return
-     */
-    private Field getGeneratedKeyField() {
-        return field("LASTVAL()").as("id");
+        return result.toArray(new Record[result.size()]);
     }
 
     /**
@@ -557,21 +1731,88 @@ public class PersistenceContext {
      */
     private List<Model> fetchHasMany(HasMany rel, Object foreignKeyValue) {
         ModelType related = metaDataFor(rel.getType());
+        String key = "hasMany:" + rel.getColumn() + ":" + rel.getOrderColumn();
+        ConcurrentMap<String, String> statements = related.getStatements();
+        String sql = statements.get(key);
+
+        if(sql == null) {
+            SelectConditionStep<Record> select = jooq.select()
+                    .from(related.getTable())
+                    .where(field(rel.getColumn()).equal(PARAMETER));
+
+            if(rel.getOrderColumn() != null) {
+                select.orderBy(field(rel.getOrderColumn()));
+            }
+
+            sql = compile(statements, key, select);
+        }
+
+        return hydrate(Statements.fetchValues(jooq, related, sql, foreignKeyValue), related);
+    }
+
+    /**
+     * Finds all models of a type with the specified ids in a single query.
+     * @param md The model type
+     * @param ids The ids to look up.  Duplicates and nulls are ignored.
+     * @return A map of id to model.  Ids that weren't found are not included.
+     */
+    private Map<Object, Model> findAllById(ModelType md, Collection<?> ids) {
+        Map<Object, Model> models = new HashMap<Object, Model>();
+        Set<Object> distinctIds = new HashSet<Object>(ids);
+        distinctIds.remove(null);
+
+        if(identityMap != null) {
+            for(Iterator<Object> i = distinctIds.iterator(); i.hasNext();) {
+                Model model = identityMap.get(md.getName(), i.next());
+
+                if(model != null) {
+                    models.put(model.getId(), model);
+                    i.remove();
+                }
+            }
+        }
+
+        ModelCache cache = cacheFor(md);
 
-        SelectConditionStep<Record> select = jooq.select()
-                .from(related.getTable())
-                .where(field(rel.getColumn()).equal(foreignKeyValue));
+        if(cache != null) {
+            for(Iterator<Object> i = distinctIds.iterator(); i.hasNext();) {
+                Map<String, Object> values = cache.get(i.next());
 
-        if(rel.getOrderColumn() != null) {
-            select.orderBy(field(rel.getOrderColumn()));
+                if(values == ModelCache.NOT_FOUND) {
+                    i.remove();
+                } else if(values != null) {
+                    Model model = hydrate(ModelValues.copyOf(values, md.getLayout()), md);
+                    models.put(model.getId(), model);
+                    i.remove();
+                }
+            }
         }
 
-        Result<Record> results = select.fetch();
+        if(distinctIds.isEmpty()) return models;
+
+        long start = System.nanoTime();
 
-        List<Model> models = new LinkedList<Model>();
+        List<ModelValues> rows = fetchValues(jooq.select()
+                .from(md.getTable())
+                .where(field(md.getPrimaryKey()).in(distinctIds)), md);
+
+        for(ModelValues values:rows) {
+            Model model = hydrate(values, md);
+            models.put(model.getId(), model);
 
-        for(Record record:results) {
-            models.add(new Model(record.intoMap(), related, this));
+            if(cache != null) {
+                cache.put(model.getId(), ModelValues.copyOf(values, md.getLayout()));
+            }
+        }
+
+        if(cache != null) {
+            for(Object id:distinctIds) {
+                if(!models.containsKey(id)) {
+                    cache.put(id, ModelCache.NOT_FOUND);
+                }
+            }
+
+            cache.getStatistics().recordLoad(System.nanoTime() - start);
         }
 
         return models;
@@ -590,24 +1831,159 @@ public class PersistenceContext {
     /**
      * Fetches the list of models in a HasAndBelongsToMany relationship with the specified model
      * @param rel The relationship
-     * @param id The owner model id
+     * @param model The owner model
      * @return The items in the collection
      */
-    private List<?> fetchHasAndBelongsToMany(HasAndBelongsToMany rel, Object id) {
-        Record[] relations = fetchRelations(rel, id);
+    private List<?> fetchHasAndBelongsToMany(HasAndBelongsToMany rel, Model model) {
+        List<Object> ids = new LinkedList<Object>();
+
+        for(Record relation:fetchRelations(rel, model)) {
+            ids.add(relation.getValue(rel.getColumn()));
+        }
+
+        return itemsFor(rel, ids, fetchRelated(rel, ids));
+    }
+
+    /**
+     * Loads all models referenced by a set of HasAndBelongsToMany links in one query.
+     * @param rel The relationship
+     * @param ids The ids of the related models
+     * @return A map of id to model, or null if the relationship uses a proxy
+     */
+    private Map<Object, Model> fetchRelated(HasAndBelongsToMany rel, Collection<Object> ids) {
+        return rel.getProxy() == null ? findAllById(metaDataFor(rel.getType()), ids) : null;
+    }
+
+    /**
+     * Builds the items of a HasAndBelongsToMany collection in link order, including duplicate links.
+     * @param rel The relationship
+     * @param ids The ids of the related items in link order
+     * @param related Preloaded related models by id, or null if the relationship uses a proxy
+     * @return The items in the collection
+     */
+    private List<Object> itemsFor(HasAndBelongsToMany rel, List<Object> ids, Map<Object, Model> related) {
         List<Object> items = new LinkedList<Object>();
         HasAndBelongsToManyProxy proxy = rel.getProxy();
 
-        if(proxy == null) {
-            for(Record relation:relations) {
-                items.add(find(rel.getType(), relation.getValue(rel.getColumn())));
+        for(Object relatedId:ids) {
+            items.add(proxy == null ? related.get(relatedId) : proxy.fetch(relatedId));
+        }
+
+        return items;
+    }
+
+    /**
+     * Gets the distinct ids of a list of models.
+     * @param models
+     * @return
+     */
+    private Set<Object> idsOf(List<Model> models) {
+        Set<Object> ids = new LinkedHashSet<Object>();
+
+        for(Model model:models) {
+            if(model.getId() != null) {
+                ids.add(model.getId());
             }
-        } else {
-            for(Record relation:relations) {
-                items.add(proxy.fetch(relation.getValue(rel.getColumn())));
+        }
+
+        return ids;
+    }
+
+    /**
+     * Loads a HasMany relationship for many owners at once, grouping the children by foreign key.
+     * @param rel The relationship
+     * @param models The owner models
+     */
+    private void preloadHasMany(HasMany rel, List<Model> models) {
+        ModelType related = metaDataFor(rel.getType());
+        Map<Object, List<Model>> children = new HashMap<Object, List<Model>>();
+        Set<Object> ids = idsOf(models);
+
+        if(!ids.isEmpty()) {
+            SelectConditionStep<Record> select = jooq.select()
+                    .from(related.getTable())
+                    .where(field(rel.getColumn()).in(ids));
+
+            if(rel.getOrderColumn() != null) {
+                select.orderBy(field(rel.getOrderColumn()));
+            }
+
+            for(ModelValues values:fetchValues(select, related)) {
+                Object foreignKeyValue = values.get(rel.getColumn());
+                List<Model> list = children.get(foreignKeyValue);
+
+                if(list == null) {
+                    list = new LinkedList<Model>();
+                    children.put(foreignKeyValue, list);
+                }
+
+                list.add(hydrate(values, related));
             }
         }
 
-        return items;
+        for(Model model:models) {
+            List<Model> list = children.get(model.getId());
+            model.setLoaded(rel.getName(), list == null ? new LinkedList<Model>() : list);
+        }
+    }
+
+    /**
+     * Loads a HasAndBelongsToMany relationship for many owners at once using one query for the link table
+     * and one for the related table.
+     * @param rel The relationship
+     * @param models The owner models
+     */
+    private void preloadHasAndBelongsToMany(HasAndBelongsToMany rel, List<Model> models) {
+        Map<Object, List<Object>> links = new HashMap<Object, List<Object>>();
+        List<Object> allIds = new LinkedList<Object>();
+        Set<Object> ids = idsOf(models);
+
+        if(!ids.isEmpty()) {
+            Result<Record> result = jooq.select()
+                    .from(rel.getTable())
+                    .where(field(rel.getForeignKeyColumn()).in(ids))
+                    .orderBy(field(rel.getOrderColumn()))
+                    .fetch();
+
+            for(Record relation:result) {
+                Object foreignKeyValue = relation.getValue(rel.getForeignKeyColumn());
+                List<Object> list = links.get(foreignKeyValue);
+
+                if(list == null) {
+                    list = new LinkedList<Object>();
+                    links.put(foreignKeyValue, list);
+                }
+
+                Object relatedId = relation.getValue(rel.getColumn());
+                list.add(relatedId);
+                allIds.add(relatedId);
+            }
+        }
+
+        Map<Object, Model> related = fetchRelated(rel, allIds);
+
+        for(Model model:models) {
+            List<Object> list = links.get(model.getId());
+            model.setLoaded(rel.getName(), itemsFor(rel, list == null ? new LinkedList<Object>() : list, related));
+        }
+    }
+
+    /**
+     * Loads a BelongsTo relationship for many models at once.
+     * @param rel The relationship
+     * @param models The models holding the foreign key
+     */
+    private void preloadBelongsTo(BelongsTo rel, List<Model> models) {
+        List<Object> foreignKeyValues = new LinkedList<Object>();
+
+        for(Model model:models) {
+            foreignKeyValues.add(model.getValues().get(rel.getColumn()));
+        }
+
+        Map<Object, Model> related = findAllById(metaDataFor(rel.getType()), foreignKeyValues);
+
+        for(Model model:models) {
+            model.setLoaded(rel.getName(), related.get(model.getValues().get(rel.getColumn())));
+        }
     }
 }
@@ -0,0 +1,137 @@
+package org.yapframework;
+
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.exception.InvalidResultException;
+import org.yapframework.metadata.ColumnLayout;
+import org.yapframework.metadata.ModelType;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Copies the rows of a query into compact model values.  The slot of each query column is resolved once
+ * against the model type's layout, then reused for every row.  Rows can be read from jOOQ records or straight
+ * from a JDBC result set, which avoids creating a record for every row.
+ */
+class RowReader {
+    private final ColumnLayout layout;
+    private final int[] slots;
+    private final int[] types;
+
+    RowReader(ModelType type, Field<?>[] fields) {
+        String[] columns = new String[fields.length];
+
+        for(int i = 0; i < fields.length; i++) {
+            columns[i] = fields[i].getName();
+        }
+
+        checkUnique(columns);
+        this.layout = type.layoutFor(columns);
+        this.slots = layout.slotsFor(columns);
+        this.types = null;
+    }
+
+    RowReader(ModelType type, ResultSetMetaData metaData) throws SQLException {
+        String[] columns = new String[metaData.getColumnCount()];
+        this.types = new int[columns.length];
+
+        for(int i = 0; i < columns.length; i++) {
+            columns[i] = metaData.getColumnLabel(i + 1);
+            types[i] = metaData.getColumnType(i + 1);
+        }
+
+        checkUnique(columns);
+        this.layout = type.layoutFor(columns);
+        this.slots = layout.slotsFor(columns);
+    }
+
+    /**
+     * Rejects results with two columns of the same name, such as the ids of joined tables, since both would be
+     * read into the same slot.  This is checked before the type's layout is extended.
+     * @param columns
+     */
+    private static void checkUnique(String[] columns) {
+        Set<String> seen = new HashSet<String>();
+
+        for(String column:columns) {
+            if(!seen.add(column)) {
+                throw new InvalidResultException("Field " + column + " is not unique");
+            }
+        }
+    }
+
+    /**
+     * Reads every remaining row of a result set.  The result set is not closed.
+     * @param type The model type
+     * @param rs
+     * @return
+     * @throws SQLException
+     */
+    static List<ModelValues> readAll(ModelType type, ResultSet rs) throws SQLException {
+        RowReader reader = new RowReader(type, rs.getMetaData());
+        List<ModelValues> rows = new ArrayList<ModelValues>();
+
+        while(rs.next()) {
+            rows.add(reader.read(rs));
+        }
+
+        return rows;
+    }
+
+    /**
+     * Reads the values of a row.
+     * @param record
+     * @return
+     */
+    ModelValues read(Record record) {
+        ModelValues values = new ModelValues(layout);
+
+        for(int i = 0; i < slots.length; i++) {
+            values.setSlot(slots[i], record.getValue(i));
+        }
+
+        return values;
+    }
+
+    /**
+     * Reads the values of the current row of a result set created with the same columns as this reader.
+     * @param rs
+     * @return
+     * @throws SQLException
+     */
+    ModelValues read(ResultSet rs) throws SQLException {
+        ModelValues values = new ModelValues(layout);
+
+        for(int i = 0; i < slots.length; i++) {
+            values.setSlot(slots[i], valueOf(rs, i + 1, types[i]));
+        }
+
+        return values;
+    }
+
+    /**
+     * Gets a column value as the same class jOOQ would return for it.  JDBC returns small integer types
+     * as Integer, where jOOQ returns Byte and Short.
+     */
+    private static Object valueOf(ResultSet rs, int index, int type) throws SQLException {
+        switch(type) {
+            case Types.TINYINT: {
+                byte value = rs.getByte(index);
+                return rs.wasNull() ? null : value;
+            }
+            case Types.SMALLINT: {
+                short value = rs.getShort(index);
+                return rs.wasNull() ? null : value;
+            }
+            default:
+                return rs.getObject(index);
+        }
+    }
+}
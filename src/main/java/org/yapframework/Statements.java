@@ -0,0 +1,177 @@
+package org.yapframework;
+
+import org.jooq.ConnectionProvider;
+import org.jooq.DSLContext;
+import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.exception.DataAccessException;
+import org.yapframework.metadata.ModelType;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+
+/**
+ * Runs precompiled SQL (see ModelType.getStatements()) by binding values to a JDBC prepared statement, without
+ * building or rendering a jOOQ query.  The SQL text of a compiled statement never changes, so drivers that cache
+ * prepared statements per connection can reuse them.
+ */
+class Statements {
+    private Statements() {
+    }
+
+    /**
+     * Runs a query.
+     * @param jooq Provides the connection
+     * @param sql
+     * @param binds
+     * @return
+     */
+    static Result<Record> fetch(DSLContext jooq, String sql, Object... binds) {
+        ConnectionProvider provider = jooq.configuration().connectionProvider();
+        Connection connection = provider.acquire();
+
+        try {
+            PreparedStatement statement = connection.prepareStatement(sql);
+
+            try {
+                bind(statement, binds);
+                return jooq.fetch(statement.executeQuery());
+            } finally {
+                statement.close();
+            }
+        } catch(SQLException e) {
+            throw new DataAccessException("Could not execute " + sql, e);
+        } finally {
+            provider.release(connection);
+        }
+    }
+
+    /**
+     * Runs a query and reads its rows straight into model values.
+     * @param jooq Provides the connection
+     * @param type The model type of the rows
+     * @param sql
+     * @param binds
+     * @return
+     */
+    static List<ModelValues> fetchValues(DSLContext jooq, ModelType type, String sql, Object... binds) {
+        ConnectionProvider provider = jooq.configuration().connectionProvider();
+        Connection connection = provider.acquire();
+
+        try {
+            PreparedStatement statement = connection.prepareStatement(sql);
+
+            try {
+                bind(statement, binds);
+                return RowReader.readAll(type, statement.executeQuery());
+            } finally {
+                statement.close();
+            }
+        } catch(SQLException e) {
+            throw new DataAccessException("Could not execute " + sql, e);
+        } finally {
+            provider.release(connection);
+        }
+    }
+
+    /**
+     * Runs an insert, update or delete.
+     * @param jooq Provides the connection
+     * @param sql
+     * @param binds
+     * @return The update count
+     */
+    static int execute(DSLContext jooq, String sql, Object... binds) {
+        ConnectionProvider provider = jooq.configuration().connectionProvider();
+        Connection connection = provider.acquire();
+
+        try {
+            PreparedStatement statement = connection.prepareStatement(sql);
+
+            try {
+                bind(statement, binds);
+                return statement.executeUpdate();
+            } finally {
+                statement.close();
+            }
+        } catch(SQLException e) {
+            throw new DataAccessException("Could not execute " + sql, e);
+        } finally {
+            provider.release(connection);
+        }
+    }
+
+    /**
+     * Runs a statement once for each set of bind values as a single JDBC batch.
+     * @param jooq Provides the connection
+     * @param sql
+     * @param rows The bind values of each execution
+     * @return The update count of each execution
+     */
+    static int[] executeBatch(DSLContext jooq, String sql, List<Object[]> rows) {
+        ConnectionProvider provider = jooq.configuration().connectionProvider();
+        Connection connection = provider.acquire();
+
+        try {
+            PreparedStatement statement = connection.prepareStatement(sql);
+
+            try {
+                for(Object[] binds:rows) {
+                    bind(statement, binds);
+                    statement.addBatch();
+                }
+
+                return statement.executeBatch();
+            } finally {
+                statement.close();
+            }
+        } catch(SQLException e) {
+            throw new DataAccessException("Could not execute " + sql, e);
+        } finally {
+            provider.release(connection);
+        }
+    }
+
+    /**
+     * Runs an insert and returns the keys the JDBC driver reports as generated.
+     * @param jooq Provides the connection
+     * @param sql
+     * @param keys The generated key columns
+     * @param binds
+     * @return One record per inserted row
+     */
+    static Result<Record> insertReturningKeys(DSLContext jooq, String sql, String[] keys, Object... binds) {
+        ConnectionProvider provider = jooq.configuration().connectionProvider();
+        Connection connection = provider.acquire();
+
+        try {
+            PreparedStatement statement = connection.prepareStatement(sql, keys);
+
+            try {
+                bind(statement, binds);
+                statement.executeUpdate();
+                return jooq.fetch(statement.getGeneratedKeys());
+            } finally {
+                statement.close();
+            }
+        } catch(SQLException e) {
+            throw new DataAccessException("Could not execute " + sql, e);
+        } finally {
+            provider.release(connection);
+        }
+    }
+
+    private static void bind(PreparedStatement statement, Object[] binds) throws SQLException {
+        for(int i = 0; i < binds.length; i++) {
+            if(binds[i] == null) {
+                // let the database infer the type from where the parameter is used
+                statement.setNull(i + 1, Types.NULL);
+            } else {
+                statement.setObject(i + 1, binds[i]);
+            }
+        }
+    }
+}
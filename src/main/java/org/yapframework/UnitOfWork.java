@@ -0,0 +1,160 @@
+package org.yapframework;
+
+import org.yapframework.metadata.BelongsTo;
+import org.yapframework.metadata.HasMany;
+import org.yapframework.metadata.Relationship;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the new, changed and removed models in a graph so that they can be written together.  On flush, models
+ * are written one dependency level at a time: BelongsTo parents before the models that reference them, and owners
+ * before their hasMany items.  Each level is written with one batch per table, and collection changes (orphans
+ * and HasAndBelongsToMany links) are written once every model has an id.  Models that depend on each other in a
+ * cycle are written once the models they depend on have ids; new models that reference each other can't be.
+ */
+class UnitOfWork {
+    private final PersistenceContext context;
+    private final List<Model> models = new ArrayList<Model>();
+    private final Map<Model, Integer> dependencyCounts = new IdentityHashMap<Model, Integer>();
+    private final Map<Model, List<Model>> dependents = new IdentityHashMap<Model, List<Model>>();
+    private final Map<Model, List<Model>> dependencies = new IdentityHashMap<Model, List<Model>>();
+
+    UnitOfWork(PersistenceContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Adds a model and everything reachable from it that may need to be saved.
+     * @param model
+     */
+    void add(Model model) {
+        if(dependencyCounts.containsKey(model)) return;
+
+        dependencyCounts.put(model, 0);
+        models.add(model);
+
+        for(Relationship<?> rel:model.getType().getRelationships().values()) {
+            // only follow relationships that have been loaded or set
+            Object value = model.getValues().get(rel.getName());
+
+            if(rel instanceof BelongsTo && value instanceof Model) {
+                Model parent = (Model) value;
+
+                if(parent.getId() == null || parent.isDirty()) {
+                    add(parent);
+                    dependsOn(model, parent);
+                }
+            } else if(rel instanceof HasMany && value instanceof List) {
+                for(Object item:(List<?>) value) {
+                    add((Model) item);
+                    dependsOn((Model) item, model);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes all collected models, ordered by their dependencies.
+     */
+    void flush() {
+        List<Model> level = new ArrayList<Model>();
+        int written = 0;
+
+        for(Model model:models) {
+            if(dependencyCounts.get(model) == 0) level.add(model);
+        }
+
+        while(written < models.size()) {
+            if(level.isEmpty()) {
+                level = breakCycle();
+            }
+
+            context.writeAll(level);
+            written += level.size();
+
+            List<Model> next = new ArrayList<Model>();
+
+            for(Model model:level) {
+                dependencyCounts.put(model, -1);
+                List<Model> waiting = dependents.get(model);
+                if(waiting == null) continue;
+
+                for(Model dependent:waiting) {
+                    int count = dependencyCounts.get(dependent);
+
+                    if(count > 0) {
+                        dependencyCounts.put(dependent, --count);
+                        if(count == 0) next.add(dependent);
+                    }
+                }
+            }
+
+            level = next;
+        }
+
+        context.writeCollections(models);
+
+        for(Model model:models) {
+            model.clearDirty();
+        }
+    }
+
+    /**
+     * Picks the models that can be written when the rest depend on each other in a cycle: those whose unwritten
+     * dependencies already have ids.
+     * @return
+     * @throws IllegalStateException if every remaining model waits for a new model
+     */
+    private List<Model> breakCycle() {
+        List<Model> level = new ArrayList<Model>();
+        List<String> waiting = new ArrayList<String>();
+
+        for(Model model:models) {
+            if(dependencyCounts.get(model) <= 0) continue;
+
+            boolean ready = true;
+
+            for(Model dependency:dependencies.get(model)) {
+                if(dependencyCounts.get(dependency) >= 0 && dependency.getId() == null) ready = false;
+            }
+
+            if(ready) {
+                level.add(model);
+            } else {
+                waiting.add(model.getType().getName() + (model.getId() == null ? " (new)" : " " + model.getId()));
+            }
+        }
+
+        if(level.isEmpty()) {
+            throw new IllegalStateException("Can't save new models that reference each other, since neither has " +
+                    "an id to reference: " + waiting + ".  Save one without the reference first.");
+        }
+
+        return level;
+    }
+
+    private void dependsOn(Model model, Model dependency) {
+        List<Model> waiting = dependents.get(dependency);
+
+        if(waiting == null) {
+            waiting = new ArrayList<Model>();
+            dependents.put(dependency, waiting);
+        }
+
+        waiting.add(model);
+        dependencyCounts.put(model, dependencyCounts.get(model) + 1);
+
+        List<Model> needed = dependencies.get(model);
+
+        if(needed == null) {
+            needed = new ArrayList<Model>();
+            dependencies.put(model, needed);
+        }
+
+        needed.add(dependency);
+    }
+}
@@ -0,0 +1,14 @@
+package org.yapframework;
+
+/**
+ * Work to run in a transaction, see PersistenceContext.inTransaction().
+ * @param <T> The type of result
+ */
+public interface Work<T> {
+    /**
+     * Runs the work.
+     * @param session A session bound to the transaction's connection
+     * @return
+     */
+    public T run(PersistenceContext session);
+}
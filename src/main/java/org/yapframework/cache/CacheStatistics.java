@@ -0,0 +1,79 @@
+package org.yapframework.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe counters for a ModelCache.
+ */
+public class CacheStatistics {
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadTime = new AtomicLong();
+
+    public void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    public void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    public void recordEviction() {
+        evictions.incrementAndGet();
+    }
+
+    /**
+     * Records a database load that followed a miss.
+     * @param nanos The time the load took in nanoseconds
+     */
+    public void recordLoad(long nanos) {
+        loads.incrementAndGet();
+        loadTime.addAndGet(nanos);
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of entries removed because the cache was full or the entry expired.  Entries
+     * invalidated by saves and deletes are not counted.
+     * @return
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    /**
+     * Gets the total time spent loading missed ids from the database, in nanoseconds.
+     * @return
+     */
+    public long getTotalLoadTime() {
+        return loadTime.get();
+    }
+
+    /**
+     * Gets the ratio of hits to lookups, or 1 if there haven't been any lookups.
+     * @return
+     */
+    public double getHitRate() {
+        long hits = getHitCount();
+        long total = hits + getMissCount();
+        return total == 0 ? 1.0 : (double) hits / total;
+    }
+
+    public String toString() {
+        return "hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount()
+                + ", loads=" + getLoadCount() + ", loadTime=" + getTotalLoadTime() + "ns";
+    }
+}
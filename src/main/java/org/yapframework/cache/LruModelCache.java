@@ -0,0 +1,89 @@
+package org.yapframework.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A ModelCache that holds up to a maximum number of entries, evicting the least recently used, and
+ * optionally expires entries a fixed time after they were cached.
+ */
+public class LruModelCache implements ModelCache {
+    private final long timeToLive;
+    private final CacheStatistics statistics = new CacheStatistics();
+    private final Map<Object, CachedRow> entries;
+
+    /**
+     * Creates a cache whose entries never expire.
+     * @param maxEntries The maximum number of ids to cache
+     */
+    public LruModelCache(int maxEntries) {
+        this(maxEntries, 0);
+    }
+
+    /**
+     * @param maxEntries The maximum number of ids to cache
+     * @param timeToLive The number of milliseconds to keep each entry, or 0 to keep entries until evicted
+     */
+    public LruModelCache(final int maxEntries, long timeToLive) {
+        this.timeToLive = timeToLive;
+        this.entries = new LinkedHashMap<Object, CachedRow>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Object, CachedRow> eldest) {
+                if(size() > maxEntries) {
+                    statistics.recordEviction();
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    public synchronized Map<String, Object> get(Object id) {
+        CachedRow entry = entries.get(id);
+
+        if(entry != null && entry.isExpired()) {
+            entries.remove(id);
+            statistics.recordEviction();
+            entry = null;
+        }
+
+        if(entry == null) {
+            statistics.recordMiss();
+            return null;
+        } else {
+            statistics.recordHit();
+            return entry.values;
+        }
+    }
+
+    public synchronized void put(Object id, Map<String, Object> values) {
+        long expires = timeToLive > 0 ? System.currentTimeMillis() + timeToLive : 0;
+        entries.put(id, new CachedRow(values, expires));
+    }
+
+    public synchronized void evict(Object id) {
+        entries.remove(id);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    private static class CachedRow {
+        private final Map<String, Object> values;
+        private final long expires;
+
+        CachedRow(Map<String, Object> values, long expires) {
+            this.values = values;
+            this.expires = expires;
+        }
+
+        boolean isExpired() {
+            return expires != 0 && System.currentTimeMillis() > expires;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.yapframework.cache;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A shared, thread-safe cache of row values by primary key for a single model type.  Configure a cache
+ * with ModelType.cache() to have PersistenceContext consult it before querying by id.  Implementations
+ * must record hits, misses and evictions in their statistics.
+ */
+public interface ModelCache {
+    /**
+     * Cached marker for an id that is known not to exist.
+     */
+    public static final Map<String, Object> NOT_FOUND = Collections.unmodifiableMap(new HashMap<String, Object>());
+
+    /**
+     * Gets the cached row values for an id.
+     * @param id The primary key value
+     * @return The values, NOT_FOUND if the id is known not to exist, or null if the id isn't cached
+     */
+    public Map<String, Object> get(Object id);
+
+    /**
+     * Caches the row values for an id.
+     * @param id The primary key value
+     * @param values The values, or NOT_FOUND if there is no row with this id
+     */
+    public void put(Object id, Map<String, Object> values);
+
+    /**
+     * Removes an id from the cache.
+     * @param id The primary key value
+     */
+    public void evict(Object id);
+
+    /**
+     * Removes all ids from the cache.
+     */
+    public void clear();
+
+    /**
+     * Gets the hit, miss, eviction and load time counters for this cache.
+     * @return
+     */
+    public CacheStatistics getStatistics();
+}
@@ -0,0 +1,15 @@
+package org.yapframework.flow;
+
+/**
+ * A producer of items that are sent to subscribers as they request them.  This has the same contract as
+ * java.util.concurrent.Flow.Publisher and org.reactivestreams.Publisher, which yap can't depend on while it
+ * supports Java 8, so adapting to either is a matter of forwarding each method.
+ * @param <T> The type of item
+ */
+public interface Publisher<T> {
+    /**
+     * Adds a subscriber, which is then passed a subscription with onSubscribe().
+     * @param subscriber
+     */
+    public void subscribe(Subscriber<? super T> subscriber);
+}
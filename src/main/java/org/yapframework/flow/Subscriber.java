@@ -0,0 +1,30 @@
+package org.yapframework.flow;
+
+/**
+ * A receiver of items from a publisher.  See Publisher.
+ * @param <T> The type of item
+ */
+public interface Subscriber<T> {
+    /**
+     * Called before any other method with the subscription used to request items.
+     * @param subscription
+     */
+    public void onSubscribe(Subscription subscription);
+
+    /**
+     * Called with each item, never more times than items were requested.
+     * @param item
+     */
+    public void onNext(T item);
+
+    /**
+     * Called if the publisher fails.  No other methods are called afterwards.
+     * @param throwable
+     */
+    public void onError(Throwable throwable);
+
+    /**
+     * Called once all items have been sent.  No other methods are called afterwards.
+     */
+    public void onComplete();
+}
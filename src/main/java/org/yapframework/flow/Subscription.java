@@ -0,0 +1,17 @@
+package org.yapframework.flow;
+
+/**
+ * Links a subscriber to a publisher.  See Publisher.
+ */
+public interface Subscription {
+    /**
+     * Requests up to n more items.
+     * @param n A positive number of items
+     */
+    public void request(long n);
+
+    /**
+     * Stops sending items.  Items already being sent may still arrive.
+     */
+    public void cancel();
+}
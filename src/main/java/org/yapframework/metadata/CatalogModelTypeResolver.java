@@ -0,0 +1,29 @@
+package org.yapframework.metadata;
+
+import org.jooq.DSLContext;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Resolves a model type from the table of the same name in a database schema, as SchemaIntrospector would
+ * configure it.  Relationships name the related tables' types, which are resolved in turn when they're used.
+ */
+public class CatalogModelTypeResolver implements ModelTypeResolver {
+    private final SchemaIntrospector introspector;
+    private final String schema;
+
+    public CatalogModelTypeResolver(DSLContext jooq, String schema) {
+        this(new SchemaIntrospector(jooq), schema);
+    }
+
+    public CatalogModelTypeResolver(SchemaIntrospector introspector, String schema) {
+        this.introspector = introspector;
+        this.schema = schema;
+    }
+
+    public ModelType resolve(String name) {
+        List<ModelType> types = introspector.introspect(schema, Collections.singleton(name));
+        return types.isEmpty() ? null : types.get(0);
+    }
+}
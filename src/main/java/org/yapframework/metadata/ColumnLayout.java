@@ -0,0 +1,119 @@
+package org.yapframework.metadata;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable mapping of column names to slot indexes that is shared by every model of a type, so that
+ * each model only needs to store its values in an array.  Layouts only ever grow: when a query returns a
+ * column the layout doesn't have yet, the model type replaces its layout with an extended copy and
+ * models created with the old layout keep working.  Equal layouts are shared between model types.
+ */
+public class ColumnLayout {
+    public static final ColumnLayout EMPTY = new ColumnLayout(new String[0]);
+
+    private final String[] columns;
+    private final Map<String, Integer> slots;
+
+    private ColumnLayout(String[] columns) {
+        this.columns = columns;
+        this.slots = new HashMap<String, Integer>(columns.length * 2);
+
+        for(int i = 0; i < columns.length; i++) {
+            slots.put(columns[i], i);
+        }
+    }
+
+    /**
+     * Gets the number of slots in the layout.
+     * @return
+     */
+    public int size() {
+        return columns.length;
+    }
+
+    /**
+     * Gets the column stored in a slot.
+     * @param slot
+     * @return
+     */
+    public String columnAt(int slot) {
+        return columns[slot];
+    }
+
+    /**
+     * Gets the slot for a column.
+     * @param column
+     * @return The slot index, or -1 if the column isn't in this layout
+     */
+    public int slotOf(Object column) {
+        Integer slot = slots.get(column);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Gets the slots for a list of columns, such as the fields of a query result.
+     * @param columns
+     * @return The slot of each column, or -1 for columns that aren't in this layout
+     */
+    public int[] slotsFor(String[] columns) {
+        int[] result = new int[columns.length];
+
+        for(int i = 0; i < columns.length; i++) {
+            result[i] = slotOf(columns[i]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns true if every column has a slot in this layout.
+     * @param columns
+     * @return
+     */
+    public boolean covers(String[] columns) {
+        for(String column:columns) {
+            if(!slots.containsKey(column)) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns a layout with slots for the specified columns added after the existing ones.
+     * @param columns
+     * @return this if all columns are already present, otherwise a new layout
+     */
+    public ColumnLayout extend(String[] columns) {
+        if(covers(columns)) return this;
+
+        Set<String> extended = new LinkedHashSet<String>(Arrays.asList(this.columns));
+
+        for(String column:columns) {
+            extended.add(Interner.intern(column));
+        }
+
+        return Interner.intern(new ColumnLayout(extended.toArray(new String[extended.size()])));
+    }
+
+    /**
+     * Gets the columns in slot order.
+     * @return
+     */
+    public String[] getColumns() {
+        return columns.clone();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ColumnLayout && Arrays.equals(columns, ((ColumnLayout) o).columns);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(columns);
+    }
+}
@@ -0,0 +1,59 @@
+package org.yapframework.metadata;
+
+import org.jooq.DSLContext;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Detects schema changes by comparing catalog fingerprints.  Each poll computes the fingerprint of the whole
+ * schema, and only when that differs from the previous poll does it fetch the fingerprint of every table to
+ * find the ones that changed.  See SchemaIntrospector.fingerprint().
+ */
+public class FingerprintChangeSource implements SchemaChangeSource {
+    private final SchemaIntrospector introspector;
+    private final String schema;
+    private String fingerprint;
+    private Map<String, String> tableFingerprints;
+
+    public FingerprintChangeSource(DSLContext jooq, String schema) {
+        this(new SchemaIntrospector(jooq), schema);
+    }
+
+    public FingerprintChangeSource(SchemaIntrospector introspector, String schema) {
+        this.introspector = introspector;
+        this.schema = schema;
+    }
+
+    public synchronized Collection<String> poll() {
+        String current = introspector.fingerprint(schema);
+
+        if(current.equals(fingerprint)) {
+            return Collections.emptySet();
+        }
+
+        Map<String, String> tables = introspector.tableFingerprints(schema);
+        Set<String> changed = new HashSet<String>();
+
+        if(tableFingerprints != null) {
+            for(Map.Entry<String, String> entry:tables.entrySet()) {
+                if(!entry.getValue().equals(tableFingerprints.get(entry.getKey()))) {
+                    changed.add(entry.getKey());
+                }
+            }
+
+            for(String table:tableFingerprints.keySet()) {
+                if(!tables.containsKey(table)) {
+                    changed.add(table);
+                }
+            }
+        }
+
+        fingerprint = current;
+        tableFingerprints = tables;
+        return changed;
+    }
+}
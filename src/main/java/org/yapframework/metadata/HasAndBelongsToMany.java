@@ -46,4 +46,18 @@ public class HasAndBelongsToMany extends CollectionRelationship<HasAndBelongsToM
         this.proxy = proxy;
         return this;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if(!super.equals(o)) return false;
+
+        HasAndBelongsToMany other = (HasAndBelongsToMany) o;
+        return same(table, other.table) && same(foreignKeyColumn, other.foreignKeyColumn)
+                && same(orderColumn, other.orderColumn) && proxy == other.proxy;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * super.hashCode() + hash(table)) + hash(foreignKeyColumn);
+    }
 }
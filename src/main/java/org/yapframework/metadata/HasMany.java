@@ -23,4 +23,14 @@ public class HasMany extends CollectionRelationship<HasMany> {
         this.destroyOrphans = destroyOrphans;
         return this;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        return super.equals(o) && destroyOrphans == ((HasMany) o).destroyOrphans && same(orderColumn, ((HasMany) o).orderColumn);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * super.hashCode() + hash(orderColumn);
+    }
 }
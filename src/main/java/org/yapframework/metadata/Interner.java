@@ -0,0 +1,51 @@
+package org.yapframework.metadata;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Canonicalizes equal immutable values so that metadata which is repeated across many model types, such as the
+ * column layouts and relationships of tables cloned from the same template, is only held once.  Values are held
+ * weakly and disappear from the pool when no model type uses them anymore.  Values are pooled by class, since
+ * values of different classes can be equal (an empty map and an empty unmodifiable map, for example) and must
+ * not replace each other's canonical instance.
+ */
+class Interner {
+    private static final Map<Class<?>, WeakHashMap<Object, WeakReference<Object>>> pools =
+            new HashMap<Class<?>, WeakHashMap<Object, WeakReference<Object>>>();
+
+    private Interner() {
+    }
+
+    /**
+     * Gets the canonical instance equal to a value, making the value canonical if there isn't one yet.
+     * @param value
+     * @param <T>
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    static synchronized <T> T intern(T value) {
+        if(value == null) return null;
+
+        WeakHashMap<Object, WeakReference<Object>> pool = pools.get(value.getClass());
+
+        if(pool == null) {
+            pool = new WeakHashMap<Object, WeakReference<Object>>();
+            pools.put(value.getClass(), pool);
+        }
+
+        WeakReference<Object> ref = pool.get(value);
+        Object existing = ref == null ? null : ref.get();
+
+        if(existing != null) {
+            return (T) existing;
+        }
+
+        // drop an entry whose canonical instance was collected, so that the new one becomes its key
+        pool.remove(value);
+        pool.put(value, new WeakReference<Object>(value));
+        return value;
+    }
+}
@@ -0,0 +1,222 @@
+package org.yapframework.metadata;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A set of model types saved in a compact binary form, so that a restarted node can load its configuration
+ * instead of rebuilding it.  The snapshot records a schema fingerprint (see SchemaIntrospector.fingerprint())
+ * so that it can be discarded when the schema has changed since it was written.  Property proxies, relationship
+ * proxies and caches are code, not data, so they aren't saved and have to be configured again after loading.
+ * Loaded types are interned, see ModelType.intern().
+ */
+public class MetadataSnapshot {
+    private static final int MAGIC = 0x59415031; // "YAP1"
+
+    private final String fingerprint;
+    private final List<ModelType> types;
+
+    public MetadataSnapshot(String fingerprint, Collection<ModelType> types) {
+        this.fingerprint = fingerprint;
+        this.types = Collections.unmodifiableList(new ArrayList<ModelType>(types));
+    }
+
+    /**
+     * Gets the fingerprint of the schema the types were built from.
+     * @return
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Gets the saved model types.
+     * @return
+     */
+    public List<ModelType> getTypes() {
+        return types;
+    }
+
+    /**
+     * Writes the snapshot.  The stream is not closed.
+     * @param out
+     * @throws IOException
+     */
+    public void write(OutputStream out) throws IOException {
+        DeflaterOutputStream deflater = new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED));
+        SnapshotWriter writer = new SnapshotWriter(new DataOutputStream(new BufferedOutputStream(deflater)));
+
+        writer.out.writeInt(MAGIC);
+        writer.writeString(fingerprint);
+        writer.out.writeInt(types.size());
+
+        for(ModelType type:types) {
+            writer.writeString(type.getName());
+            writer.writeString(type.getTable());
+            writer.writeString(type.getPrimaryKey());
+            writer.writeString(type.getVersionColumn());
+
+            String[] columns = type.getLayout().getColumns();
+            writer.out.writeInt(columns.length);
+
+            for(String column:columns) {
+                writer.writeString(column);
+            }
+
+            writer.out.writeInt(type.getRelationships().size());
+
+            for(Relationship<?> rel:type.getRelationships().values()) {
+                writer.writeRelationship(rel);
+            }
+        }
+
+        writer.out.flush();
+        deflater.finish();
+    }
+
+    /**
+     * Reads a snapshot written by write().
+     * @param in
+     * @return
+     * @throws IOException if the stream isn't a snapshot or is truncated
+     */
+    public static MetadataSnapshot read(InputStream in) throws IOException {
+        SnapshotReader reader = new SnapshotReader(new DataInputStream(new BufferedInputStream(new InflaterInputStream(in))));
+
+        if(reader.in.readInt() != MAGIC) {
+            throw new IOException("Not a metadata snapshot");
+        }
+
+        String fingerprint = reader.readString();
+        List<ModelType> types = new ArrayList<ModelType>();
+
+        for(int count = reader.in.readInt(); count > 0; count--) {
+            ModelType type = new ModelType(reader.readString())
+                    .table(reader.readString())
+                    .primaryKey(reader.readString())
+                    .versionColumn(reader.readString());
+
+            String[] columns = new String[reader.in.readInt()];
+
+            for(int i = 0; i < columns.length; i++) {
+                columns[i] = reader.readString();
+            }
+
+            type.columns(columns);
+
+            for(int relationships = reader.in.readInt(); relationships > 0; relationships--) {
+                type.relationship(reader.readRelationship());
+            }
+
+            types.add(type.intern());
+        }
+
+        return new MetadataSnapshot(fingerprint, types);
+    }
+
+    /**
+     * Writes each distinct string once, then refers to it by index, since names like "id" and the names of
+     * related types repeat across many types.
+     */
+    private static class SnapshotWriter {
+        private final DataOutputStream out;
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+        SnapshotWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void writeString(String value) throws IOException {
+            if(value == null) {
+                out.writeInt(-1);
+                return;
+            }
+
+            Integer index = strings.get(value);
+
+            if(index == null) {
+                out.writeInt(strings.size());
+                out.writeUTF(value);
+                strings.put(value, strings.size());
+            } else {
+                out.writeInt(index);
+            }
+        }
+
+        void writeRelationship(Relationship<?> rel) throws IOException {
+            if(rel instanceof BelongsTo) {
+                out.writeByte('B');
+            } else if(rel instanceof HasMany) {
+                out.writeByte('M');
+            } else if(rel instanceof HasAndBelongsToMany) {
+                out.writeByte('H');
+            } else {
+                throw new IOException("Unsupported relationship type " + rel.getClass().getName());
+            }
+
+            writeString(rel.getName());
+            writeString(rel.getColumn());
+            writeString(rel.getType());
+
+            if(rel instanceof HasMany) {
+                HasMany hasMany = (HasMany) rel;
+                writeString(hasMany.getOrderColumn());
+                out.writeBoolean(hasMany.isDeleteOrphans());
+            } else if(rel instanceof HasAndBelongsToMany) {
+                HasAndBelongsToMany habtm = (HasAndBelongsToMany) rel;
+                writeString(habtm.getTable());
+                writeString(habtm.getForeignKeyColumn());
+                writeString(habtm.getOrderColumn());
+            }
+        }
+    }
+
+    private static class SnapshotReader {
+        private final DataInputStream in;
+        private final List<String> strings = new ArrayList<String>();
+
+        SnapshotReader(DataInputStream in) {
+            this.in = in;
+        }
+
+        String readString() throws IOException {
+            int index = in.readInt();
+
+            if(index == -1) {
+                return null;
+            } else if(index == strings.size()) {
+                strings.add(in.readUTF());
+            } else if(index < -1 || index > strings.size()) {
+                throw new IOException("Invalid string reference " + index);
+            }
+
+            return strings.get(index);
+        }
+
+        Relationship<?> readRelationship() throws IOException {
+            byte kind = in.readByte();
+            String name = readString();
+            String column = readString();
+            String type = readString();
+
+            switch(kind) {
+                case 'B':
+                    return new BelongsTo(name).column(column).type(type);
+                case 'M':
+                    return new HasMany(name).column(column).type(type)
+                            .orderColumn(readString())
+                            .deleteOrphans(in.readBoolean());
+                case 'H':
+                    return new HasAndBelongsToMany(name).column(column).type(type)
+                            .table(readString())
+                            .foreignKeyColumn(readString())
+                            .orderColumn(readString());
+                default:
+                    throw new IOException("Unknown relationship kind " + kind);
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package org.yapframework.metadata;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The configured model types of a PersistenceContext.  The types are held in an immutable, versioned snapshot
+ * that is replaced as a whole whenever the configuration changes, so lookups only cost a volatile read and never
+ * see a partially applied change, even while types are reconfigured under load.  Changes are serialized with
+ * each other and copy the snapshot, so apply many at once with update() where possible.
+ * <p>
+ * Types that aren't configured can be built on first use by a ModelTypeResolver.  Resolved types are kept in a
+ * bounded cache apart from the configured ones; when it's full the least recently used types are evicted and
+ * resolved again the next time they're needed.  Concurrent lookups of a type that is being resolved wait for
+ * the same resolution.
+ */
+public class ModelRegistry {
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.<String, ModelType>emptyMap());
+    private volatile ModelTypeResolver resolver;
+    private volatile int maxResolved = 1000;
+    private final ConcurrentHashMap<String, Resolution> resolved = new ConcurrentHashMap<String, Resolution>();
+    private final AtomicLong clock = new AtomicLong();
+    private final ReentrantLock evicting = new ReentrantLock();
+
+    /**
+     * Gets a configured model type, or resolves it if there is a resolver.
+     * @param name The model type name
+     * @return The model type, or null if it isn't configured and can't be resolved
+     */
+    public ModelType get(String name) {
+        ModelType type = snapshot.types.get(name);
+
+        if(type != null || resolver == null) {
+            return type;
+        }
+
+        return resolve(name);
+    }
+
+    /**
+     * Gets every configured model type, as of the current version.  Resolved types aren't included.
+     * The map never changes.
+     * @return A map of model type name to model type
+     */
+    public Map<String, ModelType> getAll() {
+        return snapshot.types;
+    }
+
+    /**
+     * Gets the version of the configuration, which increases every time it changes.
+     * @return
+     */
+    public long getVersion() {
+        return snapshot.version;
+    }
+
+    /**
+     * Sets the resolver used to build types that aren't configured.  Previously resolved types are discarded.
+     * @param resolver The resolver, or null to only use configured types
+     * @return this
+     */
+    public ModelRegistry resolver(ModelTypeResolver resolver) {
+        this.resolver = resolver;
+        resolved.clear();
+        return this;
+    }
+
+    /**
+     * Sets the number of resolved types to keep.  Defaults to 1000.
+     * @param maxResolved
+     * @return this
+     */
+    public ModelRegistry maxResolved(int maxResolved) {
+        if(maxResolved < 1) {
+            throw new IllegalArgumentException("maxResolved must be at least 1, not " + maxResolved);
+        }
+
+        this.maxResolved = maxResolved;
+        evict();
+        return this;
+    }
+
+    /**
+     * Gets the number of resolved types currently kept.
+     * @return
+     */
+    public int getResolvedCount() {
+        return resolved.size();
+    }
+
+    /**
+     * Discards a resolved type so that it's resolved again the next time it's used.
+     * @param name The model type name
+     */
+    public void invalidate(String name) {
+        resolved.remove(name);
+    }
+
+    /**
+     * Discards the resolved types of some tables, and any types still being resolved, so that they're resolved
+     * again from the changed tables the next time they're used.
+     * @param tables The table names
+     */
+    public void invalidateTables(Collection<String> tables) {
+        for(Map.Entry<String, Resolution> entry:resolved.entrySet()) {
+            ModelType type = entry.getValue().peek();
+
+            if(type == null || tables.contains(type.getTable())) {
+                resolved.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Adds or replaces model types and removes others in a single change.  Readers see either all of the change
+     * or none of it.  Resolved types with the same names are discarded.
+     * @param configure The types to add or replace
+     * @param unconfigure The names of the types to remove
+     */
+    public synchronized void update(Collection<ModelType> configure, Collection<String> unconfigure) {
+        Snapshot current = snapshot;
+        Map<String, ModelType> types = new HashMap<String, ModelType>(current.types);
+
+        for(String name:unconfigure) {
+            types.remove(name);
+            resolved.remove(name);
+        }
+
+        for(ModelType type:configure) {
+            types.put(type.getName(), type);
+            resolved.remove(type.getName());
+        }
+
+        snapshot = new Snapshot(current.version + 1, Collections.unmodifiableMap(types));
+    }
+
+    private ModelType resolve(String name) {
+        Resolution resolution = resolved.get(name);
+
+        if(resolution == null) {
+            Resolution created = new Resolution(resolver, name);
+            created.lastUsed = clock.incrementAndGet();
+            resolution = resolved.putIfAbsent(name, created);
+
+            if(resolution == null) {
+                resolution = created;
+                evict();
+            }
+        }
+
+        resolution.lastUsed = clock.incrementAndGet();
+
+        try {
+            ModelType type = resolution.get();
+
+            // don't remember missing types, the table may be created later
+            if(type == null) {
+                resolved.remove(name, resolution);
+            }
+
+            return type;
+        } catch(RuntimeException e) {
+            resolved.remove(name, resolution);
+            throw e;
+        }
+    }
+
+    /**
+     * Evicts the least recently used resolved types once there are too many, down to nine tenths of the limit.
+     * Only one thread evicts at a time; the others carry on without waiting.
+     */
+    private void evict() {
+        if(resolved.size() <= maxResolved || !evicting.tryLock()) return;
+
+        try {
+            List<Map.Entry<String, Resolution>> entries = new ArrayList<Map.Entry<String, Resolution>>(resolved.entrySet());
+            int excess = entries.size() - maxResolved;
+            if(excess <= 0) return;
+
+            Collections.sort(entries, new Comparator<Map.Entry<String, Resolution>>() {
+                public int compare(Map.Entry<String, Resolution> a, Map.Entry<String, Resolution> b) {
+                    long x = a.getValue().lastUsed, y = b.getValue().lastUsed;
+                    return x < y ? -1 : (x == y ? 0 : 1);
+                }
+            });
+
+            // evict a little more than needed so that every new type doesn't sort the cache again
+            int count = Math.min(entries.size(), excess + maxResolved / 10);
+
+            for(int i = 0; i < count; i++) {
+                resolved.remove(entries.get(i).getKey(), entries.get(i).getValue());
+            }
+        } finally {
+            evicting.unlock();
+        }
+    }
+
+    private static class Snapshot {
+        private final long version;
+        private final Map<String, ModelType> types;
+
+        Snapshot(long version, Map<String, ModelType> types) {
+            this.version = version;
+            this.types = types;
+        }
+    }
+
+    /**
+     * A type being resolved or already resolved.  The first thread to get it runs the resolver, and others
+     * wait for its result.
+     */
+    private static class Resolution {
+        private final FutureTask<ModelType> task;
+        private volatile long lastUsed;
+
+        Resolution(final ModelTypeResolver resolver, final String name) {
+            this.task = new FutureTask<ModelType>(new Callable<ModelType>() {
+                public ModelType call() {
+                    return resolver.resolve(name);
+                }
+            });
+        }
+
+        /**
+         * Gets the resolved type without waiting.
+         * @return The type, or null if it's still being resolved or couldn't be resolved
+         */
+        ModelType peek() {
+            if(!task.isDone()) return null;
+
+            try {
+                return task.get();
+            } catch(Exception e) {
+                return null;
+            }
+        }
+
+        ModelType get() {
+            task.run();
+
+            try {
+                return task.get();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while resolving a model type", e);
+            } catch(ExecutionException e) {
+                Throwable cause = e.getCause();
+
+                if(cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if(cause instanceof Error) {
+                    throw (Error) cause;
+                }
+
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+}
@@ -1,20 +1,30 @@
 package org.yapframework.metadata;
 
 import org.yapframework.PropertyProxy;
+import org.yapframework.cache.ModelCache;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
- * Information about how a model is persisted and related to other models.
+ * Information about how a model is persisted and related to other models.  Model types may be changed while
+ * they're in use: every setting is published safely, and relationships and proxies are copied on write so
+ * that readers never see a map being modified.
  */
 public class ModelType {
-    private String name;
-    private String table;
-    private String primaryKey = "id";
-    private String versionColumn;
-    private Map<String,Relationship<?>> relationships = new HashMap<String, Relationship<?>>();
-    private Map<String,PropertyProxy<?,?>> propertyProxies = new HashMap<String, PropertyProxy<?,?>>();
+    private final String name;
+    private volatile String table;
+    private volatile String primaryKey = "id";
+    private volatile String versionColumn;
+    private volatile Map<String,Relationship<?>> relationships = Collections.emptyMap();
+    private volatile Map<String,PropertyProxy<?,?>> propertyProxies = Collections.emptyMap();
+    private volatile ModelCache cache;
+    private volatile ColumnLayout layout = ColumnLayout.EMPTY;
+    private volatile ConcurrentMap<String,String> statements = new ConcurrentHashMap<String, String>();
 
     public ModelType(String name) {
         this.name = name;
@@ -43,6 +53,7 @@ public class ModelType {
      */
     public ModelType table(String table) {
         this.table = table;
+        statements = new ConcurrentHashMap<String, String>();
         return this;
     }
 
@@ -61,6 +72,7 @@ public class ModelType {
      */
     public ModelType primaryKey(String primaryKey) {
         this.primaryKey = primaryKey;
+        statements = new ConcurrentHashMap<String, String>();
         return this;
     }
 
@@ -69,8 +81,10 @@ public class ModelType {
      * @param rel
      * @return
      */
-    public ModelType relationship(Relationship<?> rel) {
-        relationships.put(rel.getName(), rel);
+    public synchronized ModelType relationship(Relationship<?> rel) {
+        Map<String,Relationship<?>> copy = new LinkedHashMap<String, Relationship<?>>(relationships);
+        copy.put(rel.getName(), rel);
+        relationships = Collections.unmodifiableMap(copy);
         return this;
     }
 
@@ -84,7 +98,7 @@ public class ModelType {
     }
 
     /**
-     * Gets a map of all relationships
+     * Gets a map of all relationships.  The map is a snapshot that doesn't change.
      * @return
      */
     public Map<String, Relationship<?>> getRelationships() {
@@ -115,11 +129,14 @@ public class ModelType {
      */
     public ModelType versionColumn(String versionColumn) {
         this.versionColumn = versionColumn;
+        statements = new ConcurrentHashMap<String, String>();
         return this;
     }
 
-    public ModelType proxyProperty(String name, PropertyProxy<?,?> proxy) {
-        propertyProxies.put(name, proxy);
+    public synchronized ModelType proxyProperty(String name, PropertyProxy<?,?> proxy) {
+        Map<String,PropertyProxy<?,?>> copy = new LinkedHashMap<String, PropertyProxy<?,?>>(propertyProxies);
+        copy.put(name, proxy);
+        propertyProxies = Collections.unmodifiableMap(copy);
         return this;
     }
 
@@ -132,4 +149,112 @@ public class ModelType {
     public PropertyProxy<?,?> proxyForProperty(String name) {
         return propertyProxies.get(name);
     }
+
+    /**
+     * Gets the second-level cache for this model type, if one is configured.
+     * @return
+     */
+    public ModelCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Sets a second-level cache that is shared by all requests and consulted before querying by id.
+     * The cache is invalidated when models of this type are saved or deleted through the PersistenceContext.
+     * @param cache
+     * @return this
+     */
+    public ModelType cache(ModelCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * Declares the columns of this model type's table so that their slots are allocated up front.  Columns
+     * returned by queries are added automatically, so this is optional.
+     * @param columns
+     * @return this
+     */
+    public ModelType columns(String... columns) {
+        layoutFor(columns);
+        return this;
+    }
+
+    /**
+     * Gets the current column layout shared by models of this type.
+     * @return
+     */
+    public ColumnLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Gets the SQL the PersistenceContext has compiled for this type, keyed by purpose, so that it's only
+     * rendered once.  Changing the table, primary key or version column replaces the map with an empty one
+     * after the change is made, so SQL must be rendered from settings read after getting the map and only
+     * added to that same map; SQL rendered while a setting changes then ends up in a discarded map.  A
+     * reconfigured type starts without any statements.
+     * @return
+     */
+    public ConcurrentMap<String,String> getStatements() {
+        return statements;
+    }
+
+    /**
+     * Creates a copy of this type whose layout has exactly the specified columns, for when its table has been
+     * altered.  The copy shares this type's relationships, proxies and cache.  The version column is only kept
+     * if it's still one of the columns.
+     * @param columns
+     * @return
+     */
+    public synchronized ModelType withColumns(String... columns) {
+        ModelType copy = new ModelType(name).table(table).primaryKey(primaryKey).cache(cache).columns(columns);
+
+        if(versionColumn != null && Arrays.asList(columns).contains(versionColumn)) {
+            copy.versionColumn = versionColumn;
+        }
+
+        copy.relationships = relationships;
+        copy.propertyProxies = propertyProxies;
+        return copy;
+    }
+
+    /**
+     * Shares this type's column names, layout, relationships and property proxies with every structurally
+     * identical type, so that types cloned from the same template only hold their name and table themselves.
+     * Call this once the type is fully configured; relationships must not be changed afterwards since they may
+     * belong to other types too.
+     * @return this
+     */
+    public synchronized ModelType intern() {
+        primaryKey = Interner.intern(primaryKey);
+        versionColumn = Interner.intern(versionColumn);
+        layout = Interner.intern(layout);
+
+        Map<String,Relationship<?>> shared = new LinkedHashMap<String, Relationship<?>>();
+
+        for(Relationship<?> rel:relationships.values()) {
+            shared.put(Interner.intern(rel.getName()), Interner.intern(rel));
+        }
+
+        relationships = shared.isEmpty() ? Collections.<String,Relationship<?>>emptyMap()
+                : Interner.intern(Collections.unmodifiableMap(shared));
+        propertyProxies = Interner.intern(propertyProxies);
+        return this;
+    }
+
+    /**
+     * Gets a layout with slots for all of the specified columns, extending the current layout if necessary.
+     * @param columns
+     * @return
+     */
+    public ColumnLayout layoutFor(String[] columns) {
+        ColumnLayout current = layout;
+        if(current.covers(columns)) return current;
+
+        synchronized(this) {
+            layout = layout.extend(columns);
+            return layout;
+        }
+    }
 }
@@ -0,0 +1,14 @@
+package org.yapframework.metadata;
+
+/**
+ * Builds model types on first use, for types that aren't configured up front.  See ModelRegistry.resolver().
+ * Resolvers are called concurrently for different names, but only once at a time for the same name.
+ */
+public interface ModelTypeResolver {
+    /**
+     * Builds a model type.
+     * @param name The model type name
+     * @return The model type, or null if there is no such type
+     */
+    public ModelType resolve(String name);
+}
@@ -28,4 +28,25 @@ public abstract class Relationship<T> {
         this.relatedToType = relatedToType;
         return (T) this;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if(o == null || o.getClass() != getClass()) return false;
+
+        Relationship<?> other = (Relationship<?>) o;
+        return same(name, other.name) && same(column, other.column) && same(relatedToType, other.relatedToType);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * hash(name) + hash(column)) + hash(relatedToType);
+    }
+
+    protected static boolean same(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    protected static int hash(Object value) {
+        return value == null ? 0 : value.hashCode();
+    }
 }
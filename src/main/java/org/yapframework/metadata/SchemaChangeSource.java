@@ -0,0 +1,17 @@
+package org.yapframework.metadata;
+
+import java.util.Collection;
+
+/**
+ * Reports which tables of a schema have changed, for PersistenceContext.refreshSchema().  The default source
+ * polls catalog fingerprints (see FingerprintChangeSource); a source fed by DDL events can report changes
+ * without querying the catalog.
+ */
+public interface SchemaChangeSource {
+    /**
+     * Gets the tables that were created, altered or dropped since the previous call.  The first call only
+     * records the current state of the schema.
+     * @return The changed table names, empty if nothing changed
+     */
+    public Collection<String> poll();
+}
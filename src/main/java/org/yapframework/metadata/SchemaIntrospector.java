@@ -0,0 +1,365 @@
+package org.yapframework.metadata;
+
+import org.jooq.DSLContext;
+import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.SQLDialect;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Builds model types from the database catalog using information_schema, and pg_constraint for foreign keys on
+ * Postgres.  Each table with a single column primary key becomes a model type named after the table, with its
+ * columns declared up front, its version column if it has one, a BelongsTo relationship for each single column
+ * foreign key and a HasMany relationship on the referenced type.  Relationships are named after the foreign key
+ * column without its "_id" suffix and after the referencing table.  The whole schema is read with three queries
+ * regardless of how many tables it has.  Types are interned (see ModelType.intern()), so tables with the same
+ * structure share their metadata.
+ */
+public class SchemaIntrospector {
+    private static final String FINGERPRINT_ENTRIES =
+            "select c.table_name || '.' || c.column_name || ':' || c.data_type as entry, " +
+            "c.table_name as t, 0 as k, c.ordinal_position as p from information_schema.columns c where c.table_schema = ? " +
+            "union all select k.table_name || '.' || k.column_name || ':' || k.constraint_name, " +
+            "k.table_name, 1, k.ordinal_position from information_schema.key_column_usage k where k.table_schema = ?";
+
+    private final DSLContext jooq;
+    private String versionColumn = "version";
+
+    public SchemaIntrospector(DSLContext jooq) {
+        this.jooq = jooq;
+    }
+
+    /**
+     * Sets the name of the column that marks a table as versioned.  Defaults to "version".
+     * @param versionColumn
+     * @return this
+     */
+    public SchemaIntrospector versionColumn(String versionColumn) {
+        this.versionColumn = versionColumn;
+        return this;
+    }
+
+    /**
+     * Builds a model type for every table in a schema.
+     * @param schema
+     * @return
+     */
+    public List<ModelType> introspect(String schema) {
+        return introspect(schema, null);
+    }
+
+    /**
+     * Builds model types for some of the tables in a schema.  Foreign keys between a specified table and a table
+     * outside of them still become relationships on the specified table, on the assumption that the other type
+     * is configured or resolved separately under its table name.
+     * @param schema
+     * @param tables The tables to introspect, or null for all of them
+     * @return
+     */
+    public List<ModelType> introspect(String schema, Collection<String> tables) {
+        Map<String, List<String>> columns = fetchColumns(schema, tables);
+        Map<String, String> primaryKeys = fetchPrimaryKeys(schema, tables);
+        Map<String, ModelType> types = new LinkedHashMap<String, ModelType>();
+
+        for(Map.Entry<String, List<String>> entry:columns.entrySet()) {
+            String table = entry.getKey();
+            String primaryKey = primaryKeys.get(table);
+
+            // link tables and tables with composite keys have to be configured by hand
+            if(primaryKey == null) continue;
+
+            List<String> tableColumns = entry.getValue();
+            ModelType type = new ModelType(table)
+                    .table(table)
+                    .primaryKey(primaryKey)
+                    .columns(tableColumns.toArray(new String[tableColumns.size()]));
+
+            if(tableColumns.contains(versionColumn)) {
+                type.versionColumn(versionColumn);
+            }
+
+            types.put(table, type);
+        }
+
+        for(Record fk:fetchForeignKeys(schema, tables)) {
+            String childTable = fk.getValue("table_name", String.class);
+            String parentTable = fk.getValue("referenced_table", String.class);
+            ModelType child = types.get(childTable);
+            ModelType parent = types.get(parentTable);
+
+            // each end must be a model type, or be outside of the requested tables
+            if((child == null && !isExcluded(childTable, tables)) || (parent == null && !isExcluded(parentTable, tables))) continue;
+
+            String column = fk.getValue("column_name", String.class);
+
+            if(child != null) {
+                String belongsTo = relationshipName(child, columns.get(childTable),
+                        column.endsWith("_id") ? column.substring(0, column.length() - 3) : column,
+                        parentTable);
+
+                if(belongsTo != null) {
+                    child.relationship(new BelongsTo(belongsTo).type(parentTable).column(column));
+                }
+            }
+
+            if(parent != null) {
+                String hasMany = relationshipName(parent, columns.get(parentTable), childTable, childTable + "_" + column);
+
+                if(hasMany != null) {
+                    parent.relationship(new HasMany(hasMany).type(childTable).column(column));
+                }
+            }
+        }
+
+        for(ModelType type:types.values()) {
+            type.intern();
+        }
+
+        return new ArrayList<ModelType>(types.values());
+    }
+
+    /**
+     * Computes a fingerprint of a schema's columns and keys that changes whenever a table, column or
+     * constraint is added, removed or altered.  On Postgres the fingerprint is computed by the database so
+     * only one value is transferred.
+     * @param schema
+     * @return A hex string
+     */
+    public String fingerprint(String schema) {
+        if(jooq.configuration().dialect().family() == SQLDialect.POSTGRES) {
+            return jooq.fetchOne("select md5(coalesce(string_agg(entry, ',' order by t, k, entry, p), '')) from (" +
+                    FINGERPRINT_ENTRIES + ") e", schema, schema).getValue(0, String.class);
+        }
+
+        MessageDigest digest = md5();
+
+        for(Record r:jooq.fetch(FINGERPRINT_ENTRIES + " order by 2, 3, 1, 4", schema, schema)) {
+            digest.update(utf8(r.getValue(0, String.class)));
+            digest.update((byte) ',');
+        }
+
+        return String.format("%032x", new BigInteger(1, digest.digest()));
+    }
+
+    /**
+     * Computes a fingerprint of each table's columns and keys, as fingerprint() does for the whole schema, so
+     * that the tables that changed can be told apart.
+     * @param schema
+     * @return A map of table name to hex string
+     */
+    public Map<String, String> tableFingerprints(String schema) {
+        Map<String, String> fingerprints = new HashMap<String, String>();
+
+        if(jooq.configuration().dialect().family() == SQLDialect.POSTGRES) {
+            for(Record r:jooq.fetch("select t, md5(string_agg(entry, ',' order by k, entry, p)) from (" +
+                    FINGERPRINT_ENTRIES + ") e group by t", schema, schema)) {
+                fingerprints.put(r.getValue(0, String.class), r.getValue(1, String.class));
+            }
+
+            return fingerprints;
+        }
+
+        String table = null;
+        MessageDigest digest = null;
+
+        for(Record r:jooq.fetch(FINGERPRINT_ENTRIES + " order by 2, 3, 1, 4", schema, schema)) {
+            if(!r.getValue(1, String.class).equals(table)) {
+                if(table != null) {
+                    fingerprints.put(table, String.format("%032x", new BigInteger(1, digest.digest())));
+                }
+
+                table = r.getValue(1, String.class);
+                digest = md5();
+            }
+
+            digest.update(utf8(r.getValue(0, String.class)));
+            digest.update((byte) ',');
+        }
+
+        if(table != null) {
+            fingerprints.put(table, String.format("%032x", new BigInteger(1, digest.digest())));
+        }
+
+        return fingerprints;
+    }
+
+    /**
+     * Fetches the columns of base tables in ordinal order.
+     * @param schema
+     * @param tables The tables to fetch, or null for all of them
+     * @return A map of table name to column names, without the tables that don't exist
+     */
+    public Map<String, List<String>> columns(String schema, Collection<String> tables) {
+        return fetchColumns(schema, tables);
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private boolean isExcluded(String table, Collection<String> tables) {
+        return tables != null && !tables.contains(table);
+    }
+
+    /**
+     * Picks a relationship name that doesn't clash with a column or another relationship.
+     * @return The first candidate that is free, or null if none are
+     */
+    private String relationshipName(ModelType type, List<String> columns, String... candidates) {
+        for(String name:candidates) {
+            if(!columns.contains(name) && !type.hasRelationshipFor(name)) return name;
+        }
+
+        return null;
+    }
+
+    /**
+     * Fetches the columns of each base table in ordinal order.
+     */
+    private Map<String, List<String>> fetchColumns(String schema, Collection<String> tables) {
+        Result<Record> result = jooq.fetch(
+                "select c.table_name, c.column_name from information_schema.columns c " +
+                "join information_schema.tables t on t.table_schema = c.table_schema and t.table_name = c.table_name " +
+                "where c.table_schema = ? and t.table_type = 'BASE TABLE'" + tableFilter(tables, "c") +
+                " order by c.table_name, c.ordinal_position", bindValues(schema, tables, 1));
+
+        Map<String, List<String>> columns = new LinkedHashMap<String, List<String>>();
+
+        for(Record r:result) {
+            String table = r.getValue(0, String.class);
+            List<String> tableColumns = columns.get(table);
+
+            if(tableColumns == null) {
+                tableColumns = new ArrayList<String>();
+                columns.put(table, tableColumns);
+            }
+
+            tableColumns.add(r.getValue(1, String.class));
+        }
+
+        return columns;
+    }
+
+    /**
+     * Fetches the primary key column of each table that has a single column primary key.
+     */
+    private Map<String, String> fetchPrimaryKeys(String schema, Collection<String> tables) {
+        Result<Record> result = jooq.fetch(
+                "select k.table_name, k.column_name from information_schema.table_constraints c " +
+                "join information_schema.key_column_usage k on k.constraint_schema = c.constraint_schema " +
+                "and k.constraint_name = c.constraint_name and k.table_name = c.table_name " +
+                "where c.table_schema = ? and c.constraint_type = 'PRIMARY KEY'" + tableFilter(tables, "k"),
+                bindValues(schema, tables, 1));
+
+        Map<String, String> primaryKeys = new HashMap<String, String>();
+        Set<String> composite = new HashSet<String>();
+
+        for(Record r:result) {
+            String table = r.getValue(0, String.class);
+
+            if(primaryKeys.put(table, r.getValue(1, String.class)) != null) {
+                composite.add(table);
+            }
+        }
+
+        primaryKeys.keySet().removeAll(composite);
+        return primaryKeys;
+    }
+
+    /**
+     * Fetches the single column foreign keys from or to the tables.  Postgres only requires constraint names to
+     * be unique per table, so there they're read from pg_constraint, which relates each constraint to its table.
+     */
+    private List<Record> fetchForeignKeys(String schema, Collection<String> tables) {
+        Result<Record> result;
+
+        if(jooq.configuration().dialect().family() == SQLDialect.POSTGRES) {
+            result = jooq.fetch(
+                    "select k.constraint_name, k.table_name, k.column_name, r.relname as referenced_table from (" +
+                    "select c.conname as constraint_name, t.relname as table_name, a.attname as column_name, c.confrelid " +
+                    "from pg_constraint c join pg_class t on t.oid = c.conrelid " +
+                    "join pg_namespace n on n.oid = t.relnamespace " +
+                    "join pg_attribute a on a.attrelid = c.conrelid and a.attnum = any(c.conkey) " +
+                    "where c.contype = 'f' and n.nspname = ?) k " +
+                    "join (select oid, relname, relname as table_name from pg_class) r on r.oid = k.confrelid " +
+                    "where 1 = 1" + tableFilter(tables, "k", "r") +
+                    " order by k.table_name, k.constraint_name", bindValues(schema, tables, 2));
+        } else {
+            result = jooq.fetch(
+                    "select k.constraint_name, k.table_name, k.column_name, r.table_name as referenced_table " +
+                    "from information_schema.referential_constraints c " +
+                    "join information_schema.key_column_usage k on k.constraint_schema = c.constraint_schema " +
+                    "and k.constraint_name = c.constraint_name " +
+                    "join information_schema.key_column_usage r on r.constraint_schema = c.unique_constraint_schema " +
+                    "and r.constraint_name = c.unique_constraint_name and r.ordinal_position = k.position_in_unique_constraint " +
+                    "where k.table_schema = ?" + tableFilter(tables, "k", "r") +
+                    " order by k.table_name, k.constraint_name", bindValues(schema, tables, 2));
+        }
+
+        Map<List<String>, Record> byConstraint = new LinkedHashMap<List<String>, Record>();
+        Set<List<String>> composite = new HashSet<List<String>>();
+
+        for(Record r:result) {
+            List<String> constraint = Arrays.asList(r.getValue("table_name", String.class), r.getValue("constraint_name", String.class));
+
+            if(byConstraint.put(constraint, r) != null) {
+                composite.add(constraint);
+            }
+        }
+
+        byConstraint.keySet().removeAll(composite);
+        return new ArrayList<Record>(byConstraint.values());
+    }
+
+    /**
+     * Restricts a query to rows where any of the aliases is one of the tables.
+     */
+    private String tableFilter(Collection<String> tables, String... aliases) {
+        if(tables == null) return "";
+
+        // an empty list matches nothing
+        if(tables.isEmpty()) return " and 1 = 0";
+
+        StringBuilder sql = new StringBuilder(" and (");
+
+        for(int a = 0; a < aliases.length; a++) {
+            sql.append(a == 0 ? "" : " or ").append(aliases[a]).append(".table_name in (");
+
+            for(int i = 0; i < tables.size(); i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+
+            sql.append(")");
+        }
+
+        return sql.append(")").toString();
+    }
+
+    private Object[] bindValues(String schema, Collection<String> tables, int aliases) {
+        List<Object> values = new ArrayList<Object>();
+        values.add(schema);
+
+        for(int a = 0; tables != null && a < aliases; a++) {
+            values.addAll(tables);
+        }
+
+        return values.toArray();
+    }
+}
@@ -0,0 +1,51 @@
+package org.yapframework.test;
+
+import org.junit.Test;
+import org.unitils.dbunit.annotation.DataSet;
+import org.yapframework.AsyncPersistenceContext;
+import org.yapframework.Includes;
+import org.yapframework.Model;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.jooq.impl.DSL.field;
+import static org.junit.Assert.*;
+
+@DataSet("PersistenceContextTest.xml")
+public class AsyncTest extends PersistenceContextTest {
+    @Test
+    public void testIndependentLoads() throws Exception {
+        // the test data source shares one connection, so run one operation at a time
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            AsyncPersistenceContext async = context.async(executor, 1);
+            Model contact = context.find("Contact", 1);
+
+            CompletableFuture<Model> found = async.find("Contact", 1);
+            CompletableFuture<List<Model>> groups = async.fetchList(contact, "groups");
+            CompletableFuture<List<Model>> smiths = async.findAllBy("Contact", Includes.includes("phone_numbers"), field("last_name").equal("Smith"));
+
+            assertEquals("John", found.get().get("first_name", String.class));
+            assertEquals(2, groups.get().size());
+            assertEquals(2, smiths.get().size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSave() throws Exception {
+        Model contact = context.create("Contact").set("first_name", "Async");
+        assertSame(contact, context.async().save(contact).get());
+        assertNotNull(contact.getId());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSessionsCantBeAsync() {
+        context.openSession().async();
+    }
+}
@@ -0,0 +1,83 @@
+package org.yapframework.test;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.unitils.dbunit.annotation.DataSet;
+import org.yapframework.Model;
+import org.yapframework.cache.CacheStatistics;
+import org.yapframework.cache.LruModelCache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@DataSet("PersistenceContextTest.xml")
+public class CacheTest extends PersistenceContextTest {
+    private CacheStatistics statistics;
+
+    @Before
+    public void configureCache() {
+        LruModelCache cache = new LruModelCache(1);
+        context.metaDataFor("Gender").cache(cache);
+        statistics = cache.getStatistics();
+    }
+
+    @Test
+    public void testFindHit() {
+        Model gender = context.find("Gender", 1);
+        Model cached = context.find("Gender", 1);
+
+        assertNotSame(gender, cached);
+        assertEquals("Male", cached.get("name", String.class));
+        assertEquals(1, statistics.getHitCount());
+        assertEquals(1, statistics.getMissCount());
+        assertEquals(1, statistics.getLoadCount());
+    }
+
+    @Test
+    public void testBelongsToHit() {
+        context.find("Contact", 1).getModel("gender");
+        assertEquals("Male", context.find("Contact", 2).getModel("gender").get("name", String.class));
+        assertEquals(1, statistics.getLoadCount());
+    }
+
+    @Test
+    public void testMissingIdIsCached() {
+        assertNull(context.find("Gender", 99));
+        assertNull(context.find("Gender", 99));
+        assertEquals(1, statistics.getLoadCount());
+    }
+
+    @Test
+    public void testSaveInvalidates() {
+        context.find("Gender", 1).set("name", "M").save();
+        assertEquals("M", context.find("Gender", 1).get("name", String.class));
+        assertEquals(0, statistics.getHitCount());
+    }
+
+    @Test
+    public void testEviction() {
+        context.find("Gender", 1);
+        context.find("Gender", 2);
+        context.find("Gender", 1);
+        assertEquals(0, statistics.getHitCount());
+        assertEquals(2, statistics.getEvictionCount());
+    }
+
+    @Test
+    public void testReplacedCollectionEvictsOrphans() {
+        context.metaDataFor("PhoneNumber").cache(new LruModelCache(10));
+        List<Model> phoneNumbers = context.find("Contact", 1).getList("phone_numbers");
+        Object orphanId = phoneNumbers.get(0).getId();
+        assertNotNull(context.find("PhoneNumber", orphanId));
+
+        // the collection is replaced without ever being loaded on this instance
+        List<Model> kept = new ArrayList<Model>();
+        kept.add(context.find("PhoneNumber", phoneNumbers.get(1).getId()));
+        context.find("Contact", 1).set("phone_numbers", kept).save();
+
+        assertNull(context.find("PhoneNumber", orphanId));
+        assertEquals(1, context.find("Contact", 1).getList("phone_numbers").size());
+    }
+}
@@ -1,9 +1,16 @@
 package org.yapframework.test;
 
+import org.jooq.Record;
+import org.jooq.impl.DSL;
 import org.junit.Test;
 import org.unitils.dbunit.annotation.DataSet;
 import org.yapframework.Model;
 import org.yapframework.exceptions.OptimisticLockingException;
+import org.yapframework.metadata.BelongsTo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -25,6 +32,8 @@ public class CrudTest extends PersistenceContextTest {
                 .save();
 
         assertNotNull(m.getId());
+        assertEquals("Joe", context.find("Contact", m.getId()).get("first_name", String.class));
+        assertFalse(m.isDirty());
     }
 
     @Test
@@ -58,6 +67,20 @@ public class CrudTest extends PersistenceContextTest {
         assertEquals(1, context.find("Contact", 1).getList("phone_numbers").size());
     }
 
+    @Test
+    public void testDestroyHasManyOnlyTouchesOwner() {
+        Model other = context.find("Contact", 2);
+        other.getList("phone_numbers").add(context.create("PhoneNumber").set("number", "555-0000"));
+        other.save();
+
+        Model contact = context.find("Contact", 1);
+        contact.getList("phone_numbers").clear();
+        contact.save();
+
+        assertEquals(0, context.find("Contact", 1).getList("phone_numbers").size());
+        assertEquals(1, context.find("Contact", 2).getList("phone_numbers").size());
+    }
+
     @Test
     public void testDestroyHasAndBelongsToMany() {
         Model contact = context.find("Contact", 1);
@@ -66,6 +89,181 @@ public class CrudTest extends PersistenceContextTest {
         assertEquals(1, context.find("Contact", 1).getList("groups").size());
     }
 
+    @Test
+    public void testReorderHasAndBelongsToMany() {
+        Model contact = context.find("Contact", 1);
+        List<Model> groups = contact.getList("groups");
+        Model friends = groups.remove(0);
+        groups.add(friends);
+        groups.add(0, friends);
+        contact.save();
+
+        List<Model> saved = context.find("Contact", 1).getList("groups");
+        assertEquals(3, saved.size());
+        assertEquals("Friends", saved.get(0).get("name", String.class));
+        assertEquals("Coworkers", saved.get(1).get("name", String.class));
+        assertEquals("Friends", saved.get(2).get("name", String.class));
+
+        // the link to Coworkers stays in the same order, so it isn't rewritten
+        Record coworkers = context.getJooq().select().from("contacts_groups")
+                .where(DSL.field("contact_id").equal(1).and(DSL.field("group_id").equal(2)))
+                .fetchOne();
+        assertEquals((Integer) 1, coworkers.getValue("position", Integer.class));
+
+        contact = context.find("Contact", 1);
+        contact.getList("groups").remove(1);
+        contact.save();
+
+        saved = context.find("Contact", 1).getList("groups");
+        assertEquals(2, saved.size());
+        assertEquals("Friends", saved.get(1).get("name", String.class));
+    }
+
+    @Test
+    public void testSaveUnchangedIsNoOp() {
+        Model contact = context.find("Contact", 1);
+        contact.getList("phone_numbers");
+        contact.getList("groups");
+        assertFalse(contact.isDirty());
+
+        contact.save();
+        assertEquals((Integer) 1, context.find("Contact", 1).getVersion());
+    }
+
+    @Test
+    public void testUpdateOnlyChangedColumns() {
+        Model stale = context.find("Contact", 1);
+        Model contact = context.find("Contact", 1);
+        contact.set("first_name", "Jack").save();
+
+        // the stale copy only changed last_name, so first_name is left alone
+        stale.set("last_name", "Smith").setVersion(contact.getVersion());
+        assertEquals(2, stale.getDirtyFields().size());
+        stale.save();
+
+        contact = context.find("Contact", 1);
+        assertEquals("Jack", contact.get("first_name", String.class));
+        assertEquals("Smith", contact.get("last_name", String.class));
+    }
+
+    @Test
+    public void testUpdateThroughValues() {
+        Model contact = context.find("Contact", 1);
+        contact.getValues().put("first_name", "Jack");
+        assertTrue(contact.getDirtyFields().contains("first_name"));
+        contact.save();
+
+        assertEquals("Jack", context.find("Contact", 1).get("first_name", String.class));
+    }
+
+    @Test
+    public void testSaveDirtyHasManyItem() {
+        Model contact = context.find("Contact", 1);
+        contact.getList("phone_numbers").get(1).set("number", "555-9999");
+        assertTrue(contact.isDirty());
+        contact.save();
+
+        List<Model> phoneNumbers = context.find("Contact", 1).getList("phone_numbers");
+        assertEquals(2, phoneNumbers.size());
+        assertEquals("555-9999", phoneNumbers.get(1).get("number", String.class));
+    }
+
+    @Test
+    public void testSaveHasManyItemLeavesOwnerVersion() {
+        Model contact = context.find("Contact", 1);
+        Integer version = contact.getVersion();
+        contact.getList("phone_numbers").get(0).set("number", "555-1111");
+        contact.save();
+
+        assertEquals(version, contact.getVersion());
+        assertEquals(version, context.find("Contact", 1).getVersion());
+    }
+
+    @Test
+    public void testSaveAll() {
+        context.setBatchSize(2);
+        List<Model> contacts = new ArrayList<Model>();
+
+        for(int i = 0; i < 5; i++) {
+            contacts.add(context.create("Contact").set("first_name", "Batch " + i));
+        }
+
+        // different column set
+        contacts.add(context.create("Contact").set("first_name", "Batch 5").set("last_name", "Jones"));
+
+        Model existing = context.find("Contact", 1).set("last_name", "Batched");
+        contacts.add(existing);
+        context.saveAll(contacts);
+
+        for(int i = 0; i < 6; i++) {
+            Model contact = contacts.get(i);
+            assertNotNull(contact.getId());
+            assertFalse(contact.isDirty());
+            assertEquals("Batch " + i, context.find("Contact", contact.getId()).get("first_name", String.class));
+        }
+
+        assertEquals("Jones", context.find("Contact", contacts.get(5).getId()).get("last_name", String.class));
+        assertEquals("Batched", context.find("Contact", 1).get("last_name", String.class));
+        assertEquals((Integer) 2, context.find("Contact", 1).getVersion());
+    }
+
+    @Test
+    public void testSaveAllCascadesHasMany() {
+        Model contact = context.create("Contact").set("first_name", "Joe");
+        List<Model> phoneNumbers = new ArrayList<Model>();
+        phoneNumbers.add(context.create("PhoneNumber").set("type", "Home"));
+        phoneNumbers.add(context.create("PhoneNumber").set("type", "Work"));
+        contact.set("phone_numbers", phoneNumbers);
+
+        context.saveAll(Arrays.asList(contact, context.find("Contact", 2).set("first_name", "Jim")));
+
+        phoneNumbers = context.find("Contact", contact.getId()).getList("phone_numbers");
+        assertEquals(2, phoneNumbers.size());
+        assertEquals("Work", phoneNumbers.get(1).get("type", String.class));
+    }
+
+    @Test
+    public void testSaveGraphWritesParentsFirst() {
+        Model contact = context.create("Contact").set("first_name", "Joe");
+        Model phoneNumber = context.create("PhoneNumber").set("number", "555-0000").set("contact", contact);
+        phoneNumber.save();
+
+        assertNotNull(contact.getId());
+        assertFalse(contact.isDirty());
+        assertEquals("555-0000", context.find("Contact", contact.getId()).getList("phone_numbers").get(0).get("number", String.class));
+
+        List<Model> phoneNumbers = new ArrayList<Model>();
+
+        for(int i = 0; i < 3; i++) {
+            phoneNumbers.add(context.create("PhoneNumber").set("number", "555-000" + i));
+        }
+
+        contact = context.create("Contact").set("first_name", "Jane").set("phone_numbers", phoneNumbers);
+        contact.save();
+
+        List<Model> saved = context.find("Contact", contact.getId()).getList("phone_numbers");
+        assertEquals(3, saved.size());
+        assertEquals("555-0002", saved.get(2).get("number", String.class));
+    }
+
+    @Test
+    public void testSaveNewModelsReferencingEachOther() {
+        context.metaDataFor("Gender").relationship(new BelongsTo("contact").type("Contact").column("contact_id"));
+        Model contact = context.create("Contact").set("first_name", "Joe");
+        Model gender = context.create("Gender").set("name", "Other").set("contact", contact);
+        contact.set("gender", gender);
+
+        try {
+            contact.save();
+            fail();
+        } catch(IllegalStateException e) {
+            assertTrue(e.getMessage().contains("Contact (new)"));
+            assertTrue(e.getMessage().contains("Gender (new)"));
+        }
+
+        assertNull(contact.getId());
+    }
+
     @Test
     public void testDelete() {
         context.delete(context.find("Contact", 1));
@@ -79,12 +277,33 @@ public class CrudTest extends PersistenceContextTest {
         contact.save();
     }
 
+    @Test
+    public void testSaveAllOptimisticLockingException() {
+        Model stale = context.find("Contact", 1);
+        context.find("Contact", 1).set("last_name", "First").save();
+
+        Model other = context.create("Contact").set("first_name", "Joe");
+        other.save();
+        other.set("last_name", "Second");
+
+        try {
+            context.saveAll(Arrays.asList(stale.set("last_name", "Stale"), other));
+            fail("Expected OptimisticLockingException");
+        } catch(OptimisticLockingException e) {
+            // expected
+        }
+
+        assertEquals("First", context.find("Contact", 1).get("last_name", String.class));
+        assertEquals((Integer) 1, other.getVersion());
+    }
+
     @Test
     public void testUpdateVersion() {
         Model contact = context.create("Contact");
         contact.set("first_name", "Bill");
         contact.save();
         assertEquals((Integer) 0, contact.getVersion());
+        contact.set("last_name", "Jones");
         contact.save();
         assertEquals((Integer) 1, contact.getVersion());
         contact = context.find("Contact", contact.getId());
@@ -1,8 +1,13 @@
 package org.yapframework.test;
 
+import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.exception.InvalidResultException;
+import org.jooq.impl.DSL;
 import org.junit.Test;
 import org.unitils.dbunit.annotation.DataSet;
 import org.yapframework.Model;
+import org.yapframework.metadata.ColumnLayout;
 
 import java.util.List;
 
@@ -37,6 +42,21 @@ public class FetchTest extends PersistenceContextTest {
         assertEquals("Coworkers", groups.get(1).get("name", String.class));
     }
 
+    @Test
+    public void testFetchHasAndBelongsToManyWithDuplicates() {
+        context.getJooq().insertInto(DSL.table("contacts_groups"))
+                .set(DSL.field("contact_id"), 1)
+                .set(DSL.field("group_id"), 1)
+                .set(DSL.field("position"), 2)
+                .execute();
+
+        List<Model> groups = context.find("Contact", 1).getList("groups");
+        assertEquals(3, groups.size());
+        assertEquals("Friends", groups.get(0).get("name", String.class));
+        assertEquals("Coworkers", groups.get(1).get("name", String.class));
+        assertEquals("Friends", groups.get(2).get("name", String.class));
+    }
+
     @Test
     public void testFetchBelongsTo() {
         Model contact = context.find("Contact", 1);
@@ -44,6 +64,48 @@ public class FetchTest extends PersistenceContextTest {
         assertEquals("Male", contact.getModel("gender").get("name", String.class));
     }
 
+    @Test
+    public void testValuesUseTypeLayout() {
+        Model contact = context.find("Contact", 1);
+        ColumnLayout layout = context.metaDataFor("Contact").getLayout();
+        assertTrue(layout.slotOf("first_name") >= 0);
+        assertEquals(-1, layout.slotOf("phone_numbers"));
+
+        contact.set("last_name", null);
+        assertTrue(contact.getValues().containsKey("last_name"));
+        contact.getList("phone_numbers");
+        assertTrue(contact.getValues().containsKey("phone_numbers"));
+        assertEquals(layout.size() + 1, contact.getValues().size());
+    }
+
+    @Test
+    public void testValuesReadFromResultSet() {
+        for(Model contact:context.list("Contact")) {
+            assertTrue(contact.getValues().get("id") instanceof Integer);
+            assertEquals(contact.getId(), contact.getValues().get("id"));
+        }
+
+        Model phoneNumber = context.find("Contact", 1).getList("phone_numbers").get(0);
+        assertEquals(1, phoneNumber.get("contact_id", Integer.class).intValue());
+        assertTrue(phoneNumber.get("number", Object.class) instanceof String);
+        assertEquals(context.metaDataFor("PhoneNumber").getLayout().size(), phoneNumber.getValues().size());
+    }
+
+    @Test
+    public void testJoinedColumnsMustBeUnique() {
+        int layoutSize = context.metaDataFor("Contact").getLayout().size();
+        Result<Record> result = context.createJooqQuery("Contact")
+                .join(DSL.table("genders")).on(DSL.field("gender_id").equal(DSL.field("genders.id")))
+                .fetch();
+
+        try {
+            context.fromJooqResult("Contact", result);
+            fail();
+        } catch(InvalidResultException e) {
+            assertEquals(layoutSize, context.metaDataFor("Contact").getLayout().size());
+        }
+    }
+
     public void testInsertEmptyValue() {
     }
 
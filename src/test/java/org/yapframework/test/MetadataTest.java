@@ -0,0 +1,362 @@
+package org.yapframework.test;
+
+import org.jooq.SQLDialect;
+import org.junit.Test;
+import org.unitils.dbunit.annotation.DataSet;
+import org.yapframework.Model;
+import org.yapframework.PersistenceContext;
+import org.yapframework.cache.LruModelCache;
+import org.yapframework.metadata.BelongsTo;
+import org.yapframework.metadata.HasAndBelongsToMany;
+import org.yapframework.metadata.HasMany;
+import org.yapframework.metadata.ModelRegistry;
+import org.yapframework.metadata.ModelType;
+import org.yapframework.metadata.ModelTypeResolver;
+import org.yapframework.metadata.Relationship;
+import org.yapframework.metadata.SchemaIntrospector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+@DataSet("PersistenceContextTest.xml")
+public class MetadataTest extends PersistenceContextTest {
+    @Test
+    public void testReconfigure() {
+        PersistenceContext session = context.openSession();
+        long version = context.getRegistry().getVersion();
+        ModelType person = new ModelType("Person").table("contacts");
+
+        context.reconfigure(Arrays.asList(person), Arrays.asList("Gender"));
+
+        assertEquals(version + 1, context.getRegistry().getVersion());
+        assertSame(person, session.metaDataFor("Person"));
+        assertNull(session.metaDataFor("Gender"));
+        assertEquals("John", context.find("Person", 1).get("first_name", String.class));
+    }
+
+    @Test
+    public void testRelationshipsCopiedOnWrite() {
+        ModelType contact = context.metaDataFor("Contact");
+        Map<String, Relationship<?>> before = contact.getRelationships();
+        int size = before.size();
+
+        contact.relationship(new HasMany("more_phone_numbers").type("PhoneNumber").column("contact_id"));
+
+        assertEquals(size, before.size());
+        assertEquals(size + 1, contact.getRelationships().size());
+        assertNotNull(contact.relationshipFor("more_phone_numbers"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testRelationshipsAreImmutable() {
+        context.metaDataFor("Contact").getRelationships().clear();
+    }
+
+    @Test
+    public void testConfigureFromCatalog() {
+        context.getJooq().execute("alter table phone_numbers add constraint phone_numbers_contact_fk foreign key (contact_id) references contacts (id)");
+
+        try {
+            context.configureFromCatalog("public");
+        } finally {
+            context.getJooq().execute("alter table phone_numbers drop constraint phone_numbers_contact_fk");
+        }
+
+        ModelType contacts = context.metaDataFor("contacts");
+        assertEquals("id", contacts.getPrimaryKey());
+        assertEquals("version", contacts.getVersionColumn());
+        assertTrue(Arrays.asList(contacts.getLayout().getColumns()).contains("first_name"));
+
+        // no primary key
+        assertNull(context.metaDataFor("contacts_groups"));
+
+        Model contact = context.find("contacts", 1);
+        assertEquals("John", contact.get("first_name", String.class));
+        assertEquals(2, contact.getList("phone_numbers").size());
+        assertEquals(contact, contact.getList("phone_numbers").get(0).getModel("contact"));
+    }
+
+    @Test
+    public void testForeignKeyNamesSharedByTables() {
+        // tenant tables cloned from one template have identically named constraints
+        for(String table:Arrays.asList("tenant_a_contacts", "tenant_b_contacts")) {
+            context.getJooq().execute("create table " + table + " (id integer primary key, contact_id integer, " +
+                    "constraint fk_contact foreign key (contact_id) references contacts (id))");
+        }
+
+        List<ModelType> types;
+
+        try {
+            types = new SchemaIntrospector(context.getJooq()).introspect("public", Arrays.asList("tenant_a_contacts", "tenant_b_contacts"));
+        } finally {
+            context.getJooq().execute("drop table tenant_a_contacts, tenant_b_contacts");
+        }
+
+        assertEquals(2, types.size());
+
+        for(ModelType type:types) {
+            Relationship<?> contact = type.relationshipFor("contact");
+            assertTrue(contact instanceof BelongsTo);
+            assertEquals("contacts", contact.getType());
+            assertEquals("contact_id", contact.getColumn());
+        }
+    }
+
+    @Test
+    public void testSaveAndLoadMetadata() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        context.saveMetadata("public", out);
+
+        PersistenceContext restarted = new PersistenceContext()
+                .setDataSource(dataSource)
+                .setDialect(SQLDialect.POSTGRES)
+                .init();
+
+        assertTrue(restarted.loadMetadata("public", new ByteArrayInputStream(out.toByteArray())));
+
+        ModelType contact = restarted.metaDataFor("Contact");
+        assertEquals("version", contact.getVersionColumn());
+        assertEquals("contact_id", ((HasMany) contact.relationshipFor("phone_numbers")).getColumn());
+        assertEquals("position", ((HasAndBelongsToMany) contact.relationshipFor("groups")).getOrderColumn());
+        assertEquals(2, restarted.find("Contact", 1).getList("phone_numbers").size());
+
+        // a schema change invalidates the snapshot
+        context.getJooq().execute("create table snapshot_probes (id integer primary key)");
+
+        try {
+            assertFalse(restarted.loadMetadata("public", new ByteArrayInputStream(out.toByteArray())));
+        } finally {
+            context.getJooq().execute("drop table snapshot_probes");
+        }
+    }
+
+    @Test
+    public void testResolveFromCatalog() {
+        PersistenceContext lazy = new PersistenceContext()
+                .setDataSource(dataSource)
+                .setDialect(SQLDialect.POSTGRES)
+                .init()
+                .resolveFromCatalog("public", 10);
+
+        assertEquals(0, lazy.getRegistry().getResolvedCount());
+        context.getJooq().execute("alter table phone_numbers add constraint phone_numbers_contact_fk foreign key (contact_id) references contacts (id)");
+
+        try {
+            assertNotNull(lazy.metaDataFor("contacts"));
+            assertNotNull(lazy.metaDataFor("phone_numbers"));
+        } finally {
+            context.getJooq().execute("alter table phone_numbers drop constraint phone_numbers_contact_fk");
+        }
+
+        assertEquals(2, lazy.getRegistry().getResolvedCount());
+        assertSame(lazy.metaDataFor("contacts"), lazy.metaDataFor("contacts"));
+        assertNull(lazy.metaDataFor("no_such_table"));
+        assertTrue(lazy.getRegistry().getAll().isEmpty());
+
+        Model contact = lazy.find("contacts", 1);
+        assertEquals("John", contact.get("first_name", String.class));
+        assertEquals(2, contact.getList("phone_numbers").size());
+        assertEquals(contact, contact.getList("phone_numbers").get(0).getModel("contact"));
+    }
+
+    @Test
+    public void testResolveOncePerType() throws Exception {
+        final AtomicInteger resolutions = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final ModelRegistry registry = new ModelRegistry().resolver(new ModelTypeResolver() {
+            public ModelType resolve(String name) {
+                resolutions.incrementAndGet();
+                return new ModelType(name).table(name);
+            }
+        });
+
+        final List<ModelType> types = new ArrayList<ModelType>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for(int i = 0; i < 8; i++) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+
+                    ModelType type = registry.get("tenant_table");
+
+                    synchronized(types) {
+                        types.add(type);
+                    }
+                }
+            });
+
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+
+        for(Thread thread:threads) {
+            thread.join();
+        }
+
+        assertEquals(1, resolutions.get());
+        assertEquals(8, types.size());
+
+        for(ModelType type:types) {
+            assertSame(types.get(0), type);
+        }
+    }
+
+    @Test
+    public void testResolvedTypesAreEvicted() {
+        final AtomicInteger resolutions = new AtomicInteger();
+        ModelRegistry registry = new ModelRegistry().maxResolved(2).resolver(new ModelTypeResolver() {
+            public ModelType resolve(String name) {
+                resolutions.incrementAndGet();
+                return new ModelType(name).table(name);
+            }
+        });
+
+        registry.get("a");
+        registry.get("b");
+        registry.get("a");
+        registry.get("c");
+
+        assertTrue(registry.getResolvedCount() <= 2);
+        assertEquals(3, resolutions.get());
+
+        // b was least recently used
+        registry.get("a");
+        assertEquals(3, resolutions.get());
+        registry.get("b");
+        assertEquals(4, resolutions.get());
+
+        // configured types take precedence
+        ModelType configured = new ModelType("a").table("other");
+        registry.update(Arrays.asList(configured), new ArrayList<String>());
+        assertSame(configured, registry.get("a"));
+    }
+
+    @Test
+    public void testInternSharesIdenticalStructure() {
+        ModelType first = tenantContacts("tenant1_contacts").intern();
+        ModelType second = tenantContacts("tenant2_contacts").intern();
+        ModelType different = tenantContacts("tenant3_contacts").columns("nickname").intern();
+
+        assertEquals("tenant2_contacts", second.getTable());
+        assertSame(first.getLayout(), second.getLayout());
+        assertSame(first.getRelationships(), second.getRelationships());
+        assertNotSame(first.getLayout(), different.getLayout());
+        assertSame(first.relationshipFor("gender"), different.relationshipFor("gender"));
+
+        // layouts extended to the same columns are shared without interning
+        ModelType extended = new ModelType("tenant4_contacts").table("tenant4_contacts").columns("id", "first_name", "last_name", "gender_id", "version");
+        assertSame(first.getLayout(), extended.getLayout());
+    }
+
+    private ModelType tenantContacts(String table) {
+        return new ModelType(table)
+                .table(table)
+                .versionColumn("version")
+                .columns("id", "first_name", "last_name", "gender_id", "version")
+                .relationship(new BelongsTo("gender").type("Gender").column("gender_id"))
+                .relationship(new HasMany("phone_numbers").type("PhoneNumber").column("contact_id").orderColumn("position"));
+    }
+
+    @Test
+    public void testRefreshSchema() {
+        context.getJooq().execute("create table refresh_probes (id integer primary key, name varchar(20))");
+
+        try {
+            LruModelCache cache = new LruModelCache(10);
+            context.configure(new ModelType("Probe").table("refresh_probes").cache(cache).columns("id", "name"));
+            context.watchSchema("public");
+
+            ModelType contact = context.metaDataFor("Contact");
+            assertTrue(context.refreshSchema().isEmpty());
+
+            context.getJooq().execute("insert into refresh_probes (id, name) values (1, 'first')");
+            assertEquals("first", context.find("Probe", 1).get("name", String.class));
+            assertNotNull(cache.get(1));
+
+            context.getJooq().execute("alter table refresh_probes add column code varchar(10)");
+            Collection<String> changed = context.refreshSchema();
+
+            assertEquals(Arrays.asList("refresh_probes"), new ArrayList<String>(changed));
+            assertTrue(Arrays.asList(context.metaDataFor("Probe").getLayout().getColumns()).contains("code"));
+            assertSame(cache, context.metaDataFor("Probe").getCache());
+            assertNull(cache.get(1));
+            assertSame(contact, context.metaDataFor("Contact"));
+
+            context.getJooq().execute("drop table refresh_probes");
+            assertEquals(Arrays.asList("refresh_probes"), new ArrayList<String>(context.refreshSchema()));
+            assertNull(context.metaDataFor("Probe"));
+        } finally {
+            context.getJooq().execute("drop table if exists refresh_probes");
+        }
+    }
+
+    @Test
+    public void testInsertsCompiledForPowersOfTwo() {
+        List<Model> contacts = new ArrayList<Model>();
+
+        for(int i = 0; i < 7; i++) {
+            contacts.add(context.create("Contact").set("first_name", "Bulk " + i));
+        }
+
+        context.saveAll(contacts);
+
+        for(Model contact:contacts) {
+            assertNotNull(contact.getId());
+        }
+
+        List<String> inserts = new ArrayList<String>();
+
+        for(String key:context.metaDataFor("Contact").getStatements().keySet()) {
+            if(key.startsWith("insert:")) inserts.add(key.substring(key.lastIndexOf(':') + 1));
+        }
+
+        Collections.sort(inserts);
+        assertEquals(Arrays.asList("1", "2", "4"), inserts);
+    }
+
+    @Test
+    public void testStatementsCompiledOnce() {
+        ModelType contact = context.metaDataFor("Contact");
+        Model model = context.find("Contact", 1);
+        String find = contact.getStatements().get("find");
+
+        assertNotNull(find);
+        assertEquals(2, model.getList("phone_numbers").size());
+        assertNotNull(context.metaDataFor("PhoneNumber").getStatements().get("hasMany:contact_id:position"));
+
+        model.set("first_name", "Jim").save();
+        model.set("first_name", "James").save();
+        int updates = 0;
+
+        for(String key:contact.getStatements().keySet()) {
+            if(key.startsWith("update:")) updates++;
+        }
+
+        assertEquals(1, updates);
+        assertSame(find, contact.getStatements().get("find"));
+
+        // changing the table discards compiled statements, including any compiled while it changed
+        Map<String, String> before = contact.getStatements();
+        contact.table("contacts");
+        before.put("delete", "delete from stale");
+        assertTrue(contact.getStatements().isEmpty());
+        assertEquals("James", context.find("Contact", 1).get("first_name", String.class));
+    }
+}
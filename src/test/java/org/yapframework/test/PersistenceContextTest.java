@@ -9,7 +9,7 @@ import org.yapframework.test.config.PostgresTestConfiguration;
 import javax.sql.DataSource;
 
 public abstract class PersistenceContextTest extends UnitilsJUnit4 {
-    @TestDataSource private DataSource dataSource;
+    @TestDataSource protected DataSource dataSource;
 
     protected PersistenceContext context;
 
@@ -7,12 +7,23 @@ import org.jooq.impl.DSL;
 import org.junit.Test;
 import org.unitils.dbunit.annotation.DataSet;
 import org.yapframework.Model;
+import org.yapframework.ModelCursor;
+import org.yapframework.Page;
+import org.yapframework.flow.Subscriber;
+import org.yapframework.flow.Subscription;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.yapframework.Includes.includes;
 
 @DataSet("PersistenceContextTest.xml")
 public class QueryTest extends PersistenceContextTest {
@@ -51,6 +62,169 @@ public class QueryTest extends PersistenceContextTest {
         assertEquals("Smith", models.get(0).get("last_name", String.class));
     }
 
+    @Test
+    public void testFindAllByWithIncludes() {
+        List<Model> models = context.findAllBy("Contact", includes("phone_numbers", "gender", "groups"),
+                DSL.field("first_name").equal("John"));
+        assertEquals(2, models.size());
+
+        for(Model model:models) {
+            // ensure preloaded
+            assertNotNull(model.getValues().get("phone_numbers"));
+            assertNotNull(model.getValues().get("groups"));
+            assertEquals("Male", ((Model) model.getValues().get("gender")).get("name", String.class));
+        }
+
+        Model doe = models.get(0).getId().equals(1) ? models.get(0) : models.get(1);
+        Model smith = doe == models.get(0) ? models.get(1) : models.get(0);
+        assertEquals(2, doe.getList("phone_numbers").size());
+        assertEquals("Home", doe.getList("phone_numbers").get(0).get("type", String.class));
+        assertEquals("Coworkers", doe.getList("groups").get(1).get("name", String.class));
+        assertEquals(0, smith.getList("phone_numbers").size());
+        assertEquals(0, smith.getList("groups").size());
+    }
+
+    @Test
+    public void testPage() {
+        Page page = context.page("Contact", "first_name", true, 2, null);
+        assertEquals(2, page.getModels().size());
+        assertEquals("Jill", page.getModels().get(0).get("first_name", String.class));
+        assertEquals((Integer) 1, page.getModels().get(1).getId());
+        assertTrue(page.hasMore());
+
+        page = context.page("Contact", "first_name", true, 2, page.getContinuationToken());
+        assertEquals(1, page.getModels().size());
+        assertEquals((Integer) 2, page.getModels().get(0).getId());
+        assertFalse(page.hasMore());
+    }
+
+    @Test
+    public void testPageByPrimaryKeyDescending() {
+        Page page = context.page("Contact", null, false, 2, null, DSL.field("last_name").equal("Smith"));
+        assertEquals((Integer) 3, page.getModels().get(0).getId());
+        assertEquals((Integer) 2, page.getModels().get(1).getId());
+        assertFalse(page.hasMore());
+    }
+
+    @Test
+    public void testPageTokenMustMatchSort() {
+        String sorted = context.page("Contact", "first_name", true, 1, null).getContinuationToken();
+        String unsorted = context.page("Contact", null, true, 1, null).getContinuationToken();
+
+        try {
+            context.page("Contact", null, true, 1, sorted);
+            fail();
+        } catch(IllegalArgumentException e) {
+            assertEquals("Invalid continuation token", e.getMessage());
+        }
+
+        try {
+            context.page("Contact", "first_name", true, 1, unsorted);
+            fail();
+        } catch(IllegalArgumentException e) {
+            assertEquals("Invalid continuation token", e.getMessage());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPageSizeMustBePositive() {
+        context.page("Contact", "first_name", true, 0, null);
+    }
+
+    @Test
+    public void testCursor() {
+        ModelCursor cursor = context.cursor("Contact", DSL.field("first_name").equal("John"));
+        int count = 0;
+
+        try {
+            while(cursor.hasNext()) {
+                assertEquals("John", cursor.next().get("first_name", String.class));
+                count++;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        assertEquals(2, count);
+    }
+
+    @Test
+    public void testCursorFromJooqQuery() {
+        context.setFetchSize(1);
+        SelectJoinStep<Record> query = context.createJooqQuery("Contact");
+        query.orderBy(DSL.field("id"));
+        Stream<Model> stream = context.cursor("Contact", query).stream();
+
+        try {
+            assertEquals(3, stream.count());
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void testPublisher() {
+        final List<Model> received = new ArrayList<Model>();
+        final boolean[] completed = new boolean[1];
+        SelectJoinStep<Record> query = context.createJooqQuery("Contact");
+        query.orderBy(DSL.field("id"));
+
+        context.publisher("Contact", query).subscribe(new Subscriber<Model>() {
+            private Subscription subscription;
+
+            public void onSubscribe(Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            public void onNext(Model model) {
+                received.add(model);
+                subscription.request(1);
+            }
+
+            public void onError(Throwable throwable) {
+                fail(throwable.getMessage());
+            }
+
+            public void onComplete() {
+                completed[0] = true;
+            }
+        });
+
+        assertEquals(3, received.size());
+        assertEquals("Doe", received.get(0).get("last_name", String.class));
+        assertTrue(completed[0]);
+    }
+
+    @Test
+    public void testPublisherCancel() {
+        final List<Model> received = new ArrayList<Model>();
+
+        context.publisher("Contact").subscribe(new Subscriber<Model>() {
+            private Subscription subscription;
+
+            public void onSubscribe(Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            public void onNext(Model model) {
+                received.add(model);
+                if(received.size() == 2) subscription.cancel();
+            }
+
+            public void onError(Throwable throwable) {
+                fail(throwable.getMessage());
+            }
+
+            public void onComplete() {
+                fail("Cancelled subscriptions should not complete");
+            }
+        });
+
+        assertEquals(2, received.size());
+    }
+
     @Test
     public void testJooqQuery() {
         SelectJoinStep<Record> query = context.createJooqQuery("Contact");
@@ -0,0 +1,149 @@
+package org.yapframework.test;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.unitils.dbunit.annotation.DataSet;
+import org.yapframework.IdentityMap;
+import org.yapframework.Model;
+import org.yapframework.ModelCursor;
+import org.yapframework.PersistenceContext;
+import org.yapframework.Work;
+import org.yapframework.test.config.PostgresTestConfiguration;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@DataSet("PersistenceContextTest.xml")
+public class SessionTest extends PersistenceContextTest {
+    private PersistenceContext session;
+
+    @Before
+    public void openSession() {
+        session = context.openSession();
+    }
+
+    @Test
+    public void testFindReturnsSameInstance() {
+        assertSame(session.find("Contact", 1), session.find("Contact", 1));
+        assertNotSame(context.find("Contact", 1), context.find("Contact", 1));
+    }
+
+    @Test
+    public void testBelongsToSharedAcrossModels() {
+        Model gender = session.find("Contact", 1).getModel("gender");
+        assertSame(gender, session.find("Contact", 2).getModel("gender"));
+        assertSame(gender, session.find("Gender", 1));
+    }
+
+    @Test
+    public void testQueryReturnsTrackedInstances() {
+        Model contact = session.find("Contact", 1);
+        List<Model> contacts = session.findAllBy("Contact", "first_name", "John");
+        assertTrue(contacts.get(0) == contact || contacts.get(1) == contact);
+    }
+
+    @Test
+    public void testInsertAndDelete() {
+        Model contact = session.create("Contact").set("first_name", "Joe").save();
+        assertSame(contact, session.find("Contact", contact.getId()));
+
+        session.delete(contact);
+        assertNull(session.find("Contact", contact.getId()));
+    }
+
+    @Test
+    public void testBoundedIdentityMap() {
+        PersistenceContext bounded = context.openSession(IdentityMap.bounded(1));
+        Model contact = bounded.find("Contact", 1);
+        bounded.find("Contact", 2);
+        assertEquals(1, bounded.getIdentityMap().size());
+        assertNotSame(contact, bounded.find("Contact", 1));
+    }
+
+    @Test
+    public void testInTransaction() {
+        Model contact = context.inTransaction(new Work<Model>() {
+            public Model run(PersistenceContext session) {
+                Model contact = session.find("Contact", 1);
+                contact.set("last_name", "Transacted").save();
+                assertSame(contact, session.find("Contact", 1));
+
+                // nested work joins the transaction
+                return session.inTransaction(new Work<Model>() {
+                    public Model run(PersistenceContext nested) {
+                        return nested.find("Contact", 1);
+                    }
+                });
+            }
+        });
+
+        assertEquals("Transacted", contact.get("last_name", String.class));
+        assertEquals("Transacted", context.find("Contact", 1).get("last_name", String.class));
+    }
+
+    @Test
+    public void testInTransactionCursor() {
+        int count = context.inTransaction(new Work<Integer>() {
+            public Integer run(PersistenceContext session) {
+                ModelCursor cursor = session.cursor("Contact");
+                int count = 0;
+
+                while(cursor.hasNext()) {
+                    cursor.next();
+                    count++;
+                }
+
+                // the connection is still usable after the cursor closes
+                return count + session.list("Contact").size();
+            }
+        });
+
+        assertEquals(6, count);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInTransactionRethrows() {
+        context.inTransaction(new Work<Object>() {
+            public Object run(PersistenceContext session) {
+                throw new IllegalStateException();
+            }
+        });
+    }
+
+    @Test
+    public void testInTransactionCommits() throws Exception {
+        // unitils runs each test in a transaction, so use a data source whose connections auto-commit
+        final PersistenceContext plain = PostgresTestConfiguration.configurePersistenceContext();
+        Model contact = plain.inTransaction(new Work<Model>() {
+            public Model run(PersistenceContext session) {
+                return session.create("Contact").set("first_name", "Committed").save();
+            }
+        });
+
+        try {
+            assertNotNull(plain.find("Contact", contact.getId()));
+        } finally {
+            plain.delete(contact);
+        }
+    }
+
+    @Test
+    public void testInTransactionRollsBack() throws Exception {
+        final PersistenceContext plain = PostgresTestConfiguration.configurePersistenceContext();
+        final Model[] created = new Model[1];
+
+        try {
+            plain.inTransaction(new Work<Object>() {
+                public Object run(PersistenceContext session) {
+                    created[0] = session.create("Contact").set("first_name", "Rolled back").save();
+                    throw new IllegalStateException();
+                }
+            });
+            fail();
+        } catch(IllegalStateException e) {
+            assertNotNull(created[0].getId());
+            assertNull(plain.find("Contact", created[0].getId()));
+        }
+    }
+}
@@ -18,6 +18,10 @@ import org.yapframework.metadata.ModelType;
 import javax.sql.DataSource;
 
 public class PostgresTestConfiguration {
+    /**
+     * Configures a context on its own connection pool, outside of the transaction unitils runs each test in.
+     * Changes made through it are committed, so tests must remove them.
+     */
     public static PersistenceContext configurePersistenceContext() throws IllegalAccessException, InstantiationException, ClassNotFoundException {
         return configurePersistenceContext(configureDataSource());
     }
@@ -78,9 +82,9 @@ public class PostgresTestConfiguration {
     }
 
     private static DataSource configureDataSource() throws ClassNotFoundException, IllegalAccessException, InstantiationException {
-        String username = "orm";
-        String password = "orm";
-        String url = "jdbc:postgresql://localhost/orm";
+        String username = "yap";
+        String password = "yap";
+        String url = "jdbc:postgresql://localhost/yap";
         Class.forName("org.postgresql.Driver").newInstance();
 
         ObjectPool connectionPool = new GenericObjectPool(null);